@@ -0,0 +1,158 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable buffers for reading frames. The buffers come in size classes of
+ * powers of two, a request is served from the smallest class that fits. A
+ * released buffer is kept for the next request of its class, so once the pool
+ * has warmed up, reading a frame allocates nothing.
+ */
+public class BufferPool {
+
+    // The largest frame accepted, a longer length prefix closes the connection
+    // before anything is allocated for it
+    public static final int maxFrameSize = Integer.getInteger("chat.maxFrameSize",
+            MessageAssembler.maxMessageSize + 65536);
+
+    // The most bytes kept in released buffers, per pool
+    public static final long maxPooledBytes = Long.getLong("chat.bufferPool.maxBytes", 64 * 1024 * 1024);
+
+    // The smallest class holds buffers of 2^MIN_SHIFT bytes
+    private static final int MIN_SHIFT = 10;
+
+    // The buffers read from streams, which need an array
+    public static final BufferPool heapBuffers = new BufferPool(false);
+
+    /**
+     * The released buffers of one size
+     */
+    private static class SizeClass {
+        private ByteBuffer[] buffers = new ByteBuffer[4];
+        private int count;
+    }
+
+    private SizeClass[] classes;
+
+    private boolean direct;
+
+    // Metrics
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong bytesInUse = new AtomicLong();
+    private AtomicLong bytesPooled = new AtomicLong();
+
+    /**
+     * Create a pool for buffers up to maxFrameSize
+     *
+     * @param direct whether the buffers are allocated outside of the heap
+     */
+    public BufferPool(boolean direct) {
+        this.direct = direct;
+        // A frame can be read together with its length prefix
+        this.classes = new SizeClass[BufferPool.sizeClass(4 + BufferPool.maxFrameSize) + 1];
+        for (int i = 0; i < this.classes.length; i++) {
+            this.classes[i] = new SizeClass();
+        }
+    }
+
+    /**
+     * Whether a frame length read from a connection can be accepted
+     *
+     * @param length
+     * @return
+     */
+    public static boolean isValidFrameLength(int length) {
+        return length >= 0 && length <= BufferPool.maxFrameSize;
+    }
+
+    /**
+     * Take a buffer of at least the given capacity. The buffer is cleared, its
+     * limit is its capacity.
+     *
+     * @param capacity at most maxFrameSize plus a length prefix
+     * @return
+     */
+    public ByteBuffer acquire(int capacity) {
+        int index = BufferPool.sizeClass(capacity);
+        SizeClass sizeClass = this.classes[index];
+        ByteBuffer buffer = null;
+        synchronized (sizeClass) {
+            if (sizeClass.count > 0) {
+                buffer = sizeClass.buffers[--sizeClass.count];
+                sizeClass.buffers[sizeClass.count] = null;
+            }
+        }
+
+        if (buffer != null) {
+            this.hits.incrementAndGet();
+            this.bytesPooled.addAndGet(-buffer.capacity());
+            buffer.clear();
+        } else {
+            this.misses.incrementAndGet();
+            int size = 1 << (index + MIN_SHIFT);
+            buffer = this.direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+        this.bytesInUse.addAndGet(buffer.capacity());
+        return buffer;
+    }
+
+    /**
+     * Return a buffer taken from this pool. It is kept for reuse unless the pool
+     * already holds maxPooledBytes.
+     *
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        this.bytesInUse.addAndGet(-capacity);
+        if (this.bytesPooled.addAndGet(capacity) > BufferPool.maxPooledBytes) {
+            this.bytesPooled.addAndGet(-capacity);
+            return;
+        }
+
+        SizeClass sizeClass = this.classes[BufferPool.sizeClass(capacity)];
+        synchronized (sizeClass) {
+            if (sizeClass.count == sizeClass.buffers.length) {
+                ByteBuffer[] buffers = new ByteBuffer[sizeClass.count * 2];
+                System.arraycopy(sizeClass.buffers, 0, buffers, 0, sizeClass.count);
+                sizeClass.buffers = buffers;
+            }
+            sizeClass.buffers[sizeClass.count++] = buffer;
+        }
+    }
+
+    /**
+     * The index of the smallest class with buffers of at least the given size
+     */
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift - MIN_SHIFT, 0);
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * The capacity of the buffers that were acquired and not released yet
+     *
+     * @return
+     */
+    public long getBytesInUse() {
+        return this.bytesInUse.get();
+    }
+
+    /**
+     * The capacity of the released buffers kept for reuse
+     *
+     * @return
+     */
+    public long getBytesPooled() {
+        return this.bytesPooled.get();
+    }
+
+}
@@ -0,0 +1,297 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking client connection driven by a ServerEventLoop. Incoming bytes
+ * are split into length-prefixed frames and passed to the connection's
+ * handler; outgoing frames are queued and written when the channel is
+ * writable. The replies to a batch of received frames are collected into one
+ * buffer, and the queued buffers are passed to the socket together in a
+ * gathering write.
+ */
+public class ChannelConnection {
+
+    private ServerEventLoop eventLoop;
+
+    private SocketChannel channel;
+
+    private SelectionKey key;
+
+    // Whether the read buffers are allocated outside of the heap
+    private static final boolean directBuffers = Boolean.getBoolean("chat.directBuffers");
+
+    // The read buffers of all the connections. A connection only holds a buffer
+    // while a frame is partially received, an idle connection holds none.
+    private static final BufferPool readBuffers = new BufferPool(ChannelConnection.directBuffers);
+
+    public static BufferPool getReadBuffers() {
+        return ChannelConnection.readBuffers;
+    }
+
+    // The size of the buffer taken for a read
+    private static final int READ_SIZE = 8192;
+
+    // Holds a partially received frame between reads, or null
+    private ByteBuffer readBuffer;
+
+    // Frames waiting for the socket to become writable
+    private ConcurrentLinkedQueue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    // The most buffers passed to one gathering write
+    private static final int MAX_WRITE_BUFFERS = 64;
+
+    // Buffers of the last write the socket did not accept completely, in order
+    private ArrayDeque<ByteBuffer> unwritten = new ArrayDeque<>();
+
+    private ByteBuffer[] writeBatch = new ByteBuffer[MAX_WRITE_BUFFERS];
+
+    // Whether a flush of the pending writes is already scheduled on the event loop
+    private AtomicBoolean writeRequested = new AtomicBoolean(false);
+
+    private AtomicBoolean closed = new AtomicBoolean(false);
+
+    private ChatServer.Handler handler;
+
+    public ChannelConnection(ServerEventLoop eventLoop, SocketChannel channel) {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.handler = new ChatServer.Handler(this);
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public DataOutputStream createOutputStream() {
+        return new DataOutputStream(new ChannelOutputStream());
+    }
+
+    /**
+     * Read whatever is available and process every complete frame
+     */
+    public void handleRead() {
+        try {
+            if (this.readBuffer == null) {
+                this.readBuffer = ChannelConnection.readBuffers.acquire(READ_SIZE);
+            }
+            int count = this.channel.read(this.readBuffer);
+            if (count < 0) {
+                this.handler.closeSocket();
+                return;
+            }
+
+            this.readBuffer.flip();
+            while (this.readBuffer.remaining() >= 4) {
+                int messageLength = this.readBuffer.getInt(this.readBuffer.position());
+                // Refuse a frame that is too large before allocating anything for it
+                if (!BufferPool.isValidFrameLength(messageLength)) {
+                    this.handler.sendErrorFrame(Global.ERROR_CODE.INVALID_DATA_CONTENT);
+                    this.handler.closeSocket();
+                    return;
+                }
+                if (this.readBuffer.remaining() < 4 + messageLength) {
+                    break;
+                }
+                this.readBuffer.getInt();
+                // Parse the frame straight from the read buffer
+                int limit = this.readBuffer.limit();
+                int frameEnd = this.readBuffer.position() + messageLength;
+                this.readBuffer.limit(frameEnd);
+                this.handler.handleMessage(this.readBuffer);
+                this.readBuffer.limit(limit).position(frameEnd);
+                if (this.closed.get()) {
+                    return;
+                }
+            }
+            this.readBuffer.compact();
+
+            // Queue the replies to all the frames of this read as one buffer
+            this.handler.finishBatch();
+
+            // Give the buffer back if no frame is pending, or move to a larger one if
+            // the pending frame does not fit
+            if (this.readBuffer.position() == 0) {
+                this.releaseReadBuffer();
+            } else if (this.readBuffer.position() >= 4) {
+                int required = 4 + this.readBuffer.getInt(0);
+                if (required > this.readBuffer.capacity()) {
+                    ByteBuffer larger = ChannelConnection.readBuffers.acquire(required);
+                    this.readBuffer.flip();
+                    larger.put(this.readBuffer);
+                    ChannelConnection.readBuffers.release(this.readBuffer);
+                    this.readBuffer = larger;
+                }
+            }
+        } catch (Exception e) {
+            ChatLogger.warn(() -> e.toString());
+            this.handler.closeSocket();
+            this.releaseReadBuffer();
+        }
+    }
+
+    private void releaseReadBuffer() {
+        if (this.readBuffer != null) {
+            ChannelConnection.readBuffers.release(this.readBuffer);
+            this.readBuffer = null;
+        }
+    }
+
+    private void enqueue(ByteBuffer buffer) {
+        this.pendingWrites.add(buffer);
+        this.requestFlush();
+    }
+
+    /**
+     * Schedule a write of the pending frames and the handler's outbound queue on
+     * the event loop
+     */
+    public void requestFlush() {
+        if (this.writeRequested.compareAndSet(false, true)) {
+            this.eventLoop.execute(this::flushPendingWrites);
+        }
+    }
+
+    /**
+     * The next buffer to write: first the partially written ones, then the
+     * handler's direct replies, then the frames broadcast to it
+     */
+    private ByteBuffer nextWrite() {
+        ByteBuffer buffer = this.unwritten.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        buffer = this.pendingWrites.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        byte[] frame = this.handler.getOutboundQueue().poll();
+        return frame != null ? ByteBuffer.wrap(frame) : null;
+    }
+
+    private boolean hasPendingWrites() {
+        return !this.pendingWrites.isEmpty() || !this.handler.getOutboundQueue().isEmpty();
+    }
+
+    /**
+     * Write the queued frames until the socket buffer is full. Must run on the
+     * event loop thread.
+     */
+    public void flushPendingWrites() {
+        try {
+            while (true) {
+                // Gather up to a batch of buffers into one write
+                int count = 0;
+                long bytes = 0;
+                ByteBuffer buffer;
+                while (count < MAX_WRITE_BUFFERS && bytes < OutboundQueue.batchSize
+                        && (buffer = this.nextWrite()) != null) {
+                    this.writeBatch[count++] = buffer;
+                    bytes += buffer.remaining();
+                }
+                if (count == 0) {
+                    break;
+                }
+                this.channel.write(this.writeBatch, 0, count);
+
+                // Keep the buffers the socket did not take, in their order
+                for (int i = count - 1; i >= 0; i--) {
+                    if (this.writeBatch[i].hasRemaining()) {
+                        this.unwritten.addFirst(this.writeBatch[i]);
+                    }
+                    this.writeBatch[i] = null;
+                }
+                if (!this.unwritten.isEmpty()) {
+                    // Wait for the socket to become writable again
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+            this.writeRequested.set(false);
+
+            // Another thread may have queued a frame after the last check
+            if (this.hasPendingWrites()) {
+                this.requestFlush();
+            }
+        } catch (Exception e) {
+            // Take the client out of its room too, not only the channel
+            this.handler.closeSocket();
+        }
+    }
+
+    public ChatServer.Handler getHandler() {
+        return this.handler;
+    }
+
+    public ServerEventLoop getEventLoop() {
+        return this.eventLoop;
+    }
+
+    public void close() {
+        if (!this.closed.compareAndSet(false, true)) {
+            return;
+        }
+        // Let the event loop write out what is already queued, such as a CLOSE reply
+        this.eventLoop.execute(this::closeChannel);
+    }
+
+    private void closeChannel() {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = this.nextWrite()) != null && this.channel.isOpen()) {
+                this.channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            // The peer is gone, nothing more can be delivered
+        }
+        try {
+            this.channel.close();
+        } catch (IOException ex) {
+            ChatLogger.warn(() -> ex.toString());
+        }
+        this.pendingWrites.clear();
+        this.releaseReadBuffer();
+    }
+
+    /**
+     * Collects the bytes of a frame and queues them on flush
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void write(int b) {
+            this.buffer.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            this.buffer.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (this.buffer.size() == 0 || closed.get()) {
+                return;
+            }
+            enqueue(ByteBuffer.wrap(this.buffer.toByteArray()));
+            this.buffer.reset();
+        }
+
+        @Override
+        public void close() {
+            ChannelConnection.this.close();
+        }
+
+    }
+
+}
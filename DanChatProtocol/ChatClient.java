@@ -2,10 +2,19 @@ import java.io.IOException;
 import java.io.DataOutputStream;
 import java.io.DataInputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * A simple Swing-based client for the chat server. Graphically it is a frame
@@ -24,12 +33,39 @@ import java.util.TimerTask;
 public class ChatClient {
 
     private final String secret = "DanChatSecret";
-    private final int protocolVersion = 1;
+
+    // Port of the server
+    public static final int port = Integer.getInteger("chat.port", 59001);
+
+    // The highest protocol version of the client
+    public static final int protocolVersion = Integer.getInteger("chat.protocolVersion", 2);
+
+    // Milliseconds a connection may be idle before a PING is sent
+    public static final long pingInterval = Long.getLong("chat.pingInterval", 3000);
+
+    // The most TEXT frames sent and not acknowledged yet by the server
+    public static final int sendWindow = Integer.getInteger("chat.sendWindow", 32);
+
+    // Milliseconds without any frame from the server before the connection is closed
+    public static final long serverTimeout = Long.getLong("chat.serverTimeout", 10000);
+
+    // All the clients of a process share one thread for their pings and timeouts
+    private static ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-client-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static ScheduledExecutorService getScheduler() {
+        return ChatClient.scheduler;
+    }
 
     String serverAddress;
     DataInputStream in;
     DataOutputStream out;
-    boolean running = true;
+    // Held by every thread writing to the output stream
+    final ReentrantLock outLock = new ReentrantLock();
+    volatile boolean running = true;
 
     Socket socket;
 
@@ -57,7 +93,7 @@ public class ChatClient {
         return this.closingState;
     }
 
-    private ClientState currentState;
+    private volatile ClientState currentState;
 
     public ClientState getCurrentState() {
         return this.currentState;
@@ -75,27 +111,41 @@ public class ChatClient {
             str = "CLOSED";
         } else if (state.equals(this.openState)) {
             str = "OPEN";
-            // Send a heartbeat to the server every 3 seconds
+            // Send a heartbeat to the server when the connection is idle
             this.setSendPingTask();
         } else if (state.equals(this.joinedState)) {
             str = "JOINED";
-            // Send a heartbeat to the server every 3 seconds
+            // Send a heartbeat to the server when the connection is idle
             this.setSendPingTask();
         } else if (state.equals(this.closingState)) {
             str = "CLOSING";
-            // Don't get a close frame response after 3 seconds, close the connection
+            // Don't get a close frame response in time, close the connection
             this.setServerTimeoutTask();
         }
 
-        System.out.println("Client is in " + str + " state. Room: " + this.roomName + " - Name: " + this.displayName);
+        // A headless client's state changes are only logged at DEBUG
+        String stateName = str;
+        ChatLogger.log(this.headless ? ChatLogger.LEVEL.DEBUG : ChatLogger.LEVEL.INFO,
+                () -> "Client is in " + stateName + " state. Room: " + this.roomName + " - Name: " + this.displayName);
     }
 
-    private Timer timer;
-    private TimerTask sendPing;
+    // When the client last sent and received a frame
+    private volatile long lastSent;
+    private volatile long lastReceived;
+
+    public long getLastSent() {
+        return this.lastSent;
+    }
+
+    public long getLastReceived() {
+        return this.lastReceived;
+    }
+
+    private SendPing sendPing;
 
     public void setSendPingTask() {
         this.sendPing = new SendPing(this);
-        this.timer.schedule(this.sendPing, 3000, 3000);
+        this.sendPing.start();
     }
 
     public void stopSendPingTask() {
@@ -104,16 +154,16 @@ public class ChatClient {
         }
     }
 
-    private TimerTask serverTimeout;
+    private ServerTimeout serverTimeoutTask;
 
     public void setServerTimeoutTask() {
-        this.serverTimeout = new ServerTimeout(this);
-        this.timer.schedule(this.serverTimeout, 10000);
+        this.serverTimeoutTask = new ServerTimeout(this);
+        this.serverTimeoutTask.start();
     }
 
     public void stopServerTimeoutTask() {
-        if (this.serverTimeout != null) {
-            this.serverTimeout.cancel();
+        if (this.serverTimeoutTask != null) {
+            this.serverTimeoutTask.cancel();
         }
     }
 
@@ -137,9 +187,165 @@ public class ChatClient {
         this.displayName = name;
     }
 
+    // The room the client last joined and the sequence number of the last message
+    // it received there, used to recover only the missed messages on rejoining
+    private String lastRoomName = "";
+    private long lastSequence = -1;
+
+    public String getLastRoomName() {
+        return this.lastRoomName;
+    }
+
+    public long getLastSequence() {
+        return this.lastSequence;
+    }
+
+    public void setLastSequence(String roomName, long sequence) {
+        this.lastRoomName = roomName;
+        this.lastSequence = sequence;
+    }
+
+    // The cluster node that gave out the sequence numbers and cursors above, null
+    // if the server is not part of a cluster. Each node numbers the messages its
+    // own way.
+    private String serverNode;
+
+    public String getServerNode() {
+        return this.serverNode;
+    }
+
+    public void setServerNode(String node) {
+        this.serverNode = node;
+    }
+
+    /**
+     * Name the node a request's sequence numbers come from, if the server is part
+     * of a cluster
+     *
+     * @param extendedData
+     * @return
+     */
+    public String addServerNode(String extendedData) {
+        return this.serverNode == null ? extendedData : Global.addField(extendedData, "node", this.serverNode);
+    }
+
+    // Where the next page of a RECOVERY request starts
+    private long recoveryCursor = 0;
+
+    public long getRecoveryCursor() {
+        return this.recoveryCursor;
+    }
+
+    public void setRecoveryCursor(long cursor) {
+        this.recoveryCursor = cursor;
+    }
+
+    // The last search and where its next page of results starts
+    private String lastSearch = "";
+    private long searchCursor = 0;
+
+    public String getLastSearch() {
+        return this.lastSearch;
+    }
+
+    public void setLastSearch(String search) {
+        this.lastSearch = search;
+    }
+
+    public long getSearchCursor() {
+        return this.searchCursor;
+    }
+
+    public void setSearchCursor(long cursor) {
+        this.searchCursor = cursor;
+    }
+
+    /**
+     * A numbered TEXT frame that the server has not acknowledged yet
+     */
+    private static class PendingText {
+        private long sequence;
+        private DataFrame frame;
+
+        private PendingText(long sequence, DataFrame frame) {
+            this.sequence = sequence;
+            this.frame = frame;
+        }
+    }
+
+    // The number of the next TEXT frame
+    private long nextTextSequence = 0;
+
+    // Identifies this client's numbering of TEXT frames to the server, so that the
+    // frames resent after a reconnect are recognized
+    private final long clientId = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+
+    public long getClientId() {
+        return this.clientId;
+    }
+
+    // TEXT frames sent and waiting for an ACK, oldest first
+    private ArrayDeque<PendingText> unacknowledged = new ArrayDeque<>();
+
+    // TEXT frames waiting for room in the send window
+    private ArrayDeque<PendingText> waiting = new ArrayDeque<>();
+
+    // The large messages being received, by stream id. The fragments of the
+    // messages of several senders can arrive interleaved. Only the most recent
+    // streams are kept, the oldest is dropped if a sender stopped in the middle of
+    // a message.
+    private LinkedHashMap<String, MessageAssembler> streams = new LinkedHashMap<String, MessageAssembler>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MessageAssembler> eldest) {
+            return this.size() > ChatClient.MAX_STREAMS;
+        }
+    };
+
+    private static final int MAX_STREAMS = 16;
+
+    // The protocol version the server chose in the OPEN handshake
+    private volatile int version = 1;
+
+    public int getProtocolVersion() {
+        return this.version;
+    }
+
+    public void setProtocolVersion(int version) {
+        this.version = version;
+    }
+
+    // Whether the server agreed to compress frames in the OPEN handshake
+    private volatile boolean compression = false;
+
+    public boolean isCompressionEnabled() {
+        return this.compression;
+    }
+
+    public void setCompressionEnabled(boolean compression) {
+        this.compression = compression;
+    }
+
     private boolean openHandShakeSent = false;
     private boolean displayInstructions = true;
 
+    // A headless client prints nothing, it is driven by a program instead of a user
+    private boolean headless = false;
+
+    public void setHeadless(boolean headless) {
+        this.headless = headless;
+    }
+
+    // Called with every TEXT frame received in a room
+    private Consumer<DataFrame> textListener;
+
+    public Consumer<DataFrame> getTextListener() {
+        return this.textListener;
+    }
+
+    public void setTextListener(Consumer<DataFrame> listener) {
+        this.textListener = listener;
+    }
+
     public boolean getDisplayInstructions() {
         return this.displayInstructions;
     }
@@ -163,29 +369,56 @@ public class ChatClient {
         this.joinedState = new ClientJoinedState(this);
         this.closingState = new ClientClosingState(this);
         this.currentState = this.closedState;
-        this.timer = new Timer();
+    }
+
+    /**
+     * Connect to the server. A client that was disconnected can connect again,
+     * the messages that were not acknowledged are resent when it rejoins the room.
+     *
+     * @throws IOException
+     */
+    public void connect() throws IOException {
+        this.running = true;
+        this.currentState = this.closedState;
+        this.openHandShakeSent = false;
+        this.socket = new Socket(serverAddress, ChatClient.port);
+        in = new DataInputStream(socket.getInputStream());
+        out = new DataOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Start the handshake with an OPEN frame carrying the secret
+     *
+     * @throws IOException
+     */
+    public void sendOpenHandshake() throws IOException {
+        // base64-encode the secret
+        String base64encodedSecret = Base64.getEncoder().encodeToString(this.secret.getBytes("utf-8"));
+        // Offer to compress frames, they are compressed once the server agrees
+        this.compression = false;
+        String extendedData = FrameCompressor.enabled ? Global.addField("", "compress", FrameCompressor.NAME) : "";
+        // Create an open frame asking for the client's version. Until the server
+        // replies with the version to use, version 1 is used.
+        this.version = 1;
+        Global.sendFrame(out, this.outLock, new DataFrame(true, false, false, false, ChatClient.protocolVersion,
+                Global.FRAME_TYPE.OPEN.getValue(), Global.ERROR_CODE.NONE.getValue(), base64encodedSecret, extendedData));
+        this.lastSent = System.currentTimeMillis();
+        this.openHandShakeSent = true;
+        // Close the socket if there is no response in time
+        this.setServerTimeoutTask();
     }
 
     private void run() throws IOException {
-        this.socket = new Socket(serverAddress, 59001);
+        this.connect();
         Scanner inputScanner = new Scanner(System.in);
         try {
-            in = new DataInputStream(socket.getInputStream());
-            out = new DataOutputStream(socket.getOutputStream());
-
             System.out.println("Chat client started...");
 
             while (this.running) {
 
                 // If we are in closed state, and an open handshake has not been sent, send
                 if (this.currentState.equals(this.closedState) && !openHandShakeSent) {
-                    // base64-encode the secret
-                    String base64encodedSecret = Base64.getEncoder().encodeToString(this.secret.getBytes("utf-8"));
-                    // Create an open frame
-                    this.sendMessage(true, Global.FRAME_TYPE.OPEN, Global.ERROR_CODE.NONE, base64encodedSecret, "");
-                    this.openHandShakeSent = true;
-                    // Close the socket if don't get a response after 3 seconds
-                    this.setServerTimeoutTask();
+                    this.sendOpenHandshake();
                 }
 
                 if (this.displayInstructions) {
@@ -198,61 +431,250 @@ public class ChatClient {
 
                 // Handle incoming messages
                 if (in.available() > 0) {
-                    int messageLength = in.readInt();
-                    // Get the byte stream
-                    byte[] message = new byte[messageLength];
-                    in.readFully(message, 0, messageLength);
-                    // Parse the byte array to get a frame
-                    DataFrame frame = new DataFrame();
-                    boolean success = frame.parseFromByteArray(message);
-                    if (success) {
-
-                        // For any error frame, display the error message and close the socket
-                        // immediately
-                        if (frame.getType() == Global.FRAME_TYPE.ERROR.getValue()) {
-                            this.handleErrorFrame(frame);
-                            continue;
-                        }
-
-                        // Handle the close frames
-                        if (frame.getType() == Global.FRAME_TYPE.CLOSE.getValue()) {
-                            this.handleCloseFrame(frame);
-                            continue;
-                        }
-
-                        // Handle the frame
-                        this.currentState.handleDataFrame(frame);
-
-                    } else {
-
-                        // Send an error frame
-                        Global.sendErrorFrame(out, Global.ERROR_CODE.CORRUPT_FRAME);
-                        // Close the socket immedialte
-                        this.closeSocket();
-
-                    }
+                    this.receiveFrame();
                 }
             }
 
         } catch (Exception ex) {
-            System.out.println(ex);
+            ChatLogger.warn(() -> ex.toString());
         } finally {
             inputScanner.close();
             this.closeSocket();
         }
     }
 
+    /**
+     * Handle the server's frames until the connection is closed. Used by headless
+     * clients, which have no user input to poll for.
+     */
+    public void receive() {
+        try {
+            while (this.running) {
+                this.receiveFrame();
+            }
+        } catch (Exception ex) {
+            // Reading fails once the socket is closed, this is expected
+            if (this.running) {
+                ChatLogger.warn(() -> ex.toString());
+            }
+        } finally {
+            this.closeSocket();
+        }
+    }
+
+    /**
+     * Read one frame from the server and handle it
+     *
+     * @throws IOException
+     */
+    private void receiveFrame() throws IOException {
+        int messageLength = in.readInt();
+        // Refuse a frame that is too large before allocating anything for it
+        if (!BufferPool.isValidFrameLength(messageLength)) {
+            this.display("The server sent a frame of " + messageLength + " bytes, the limit is "
+                    + BufferPool.maxFrameSize + ".");
+            this.closeSocket();
+            return;
+        }
+        // Get the byte stream into a pooled buffer
+        ByteBuffer message = BufferPool.heapBuffers.acquire(messageLength);
+        DataFrame frame = new DataFrame();
+        boolean success;
+        try {
+            in.readFully(message.array(), 0, messageLength);
+            this.lastReceived = System.currentTimeMillis();
+            // Parse the buffer to get a frame, its data is copied out of the buffer
+            message.limit(messageLength);
+            success = frame.parseFromByteBuffer(message);
+        } finally {
+            BufferPool.heapBuffers.release(message);
+        }
+        // A compressed frame is only valid once compression was agreed on
+        if (success && frame.getRsv1()) {
+            frame = this.compression ? FrameCompressor.decompress(frame) : null;
+            success = frame != null;
+        }
+        if (success) {
+
+            // For any error frame, display the error message and close the socket
+            // immediately
+            if (frame.getType() == Global.FRAME_TYPE.ERROR.getValue()) {
+                this.handleErrorFrame(frame);
+                return;
+            }
+
+            // Handle the close frames
+            if (frame.getType() == Global.FRAME_TYPE.CLOSE.getValue()) {
+                this.handleCloseFrame(frame);
+                return;
+            }
+
+            // The acknowledgements can arrive in any state
+            if (frame.getType() == Global.FRAME_TYPE.ACK.getValue()) {
+                this.handleAckFrame(frame);
+                return;
+            }
+
+            // Handle the frame
+            this.currentState.handleDataFrame(frame);
+
+        } else {
+
+            // Send an error frame
+            Global.sendErrorFrame(out, this.outLock, this.version, Global.ERROR_CODE.CORRUPT_FRAME);
+            // Close the socket immedialte
+            this.closeSocket();
+
+        }
+    }
+
+    /**
+     * Print a line for the user, unless the client is headless
+     *
+     * @param line
+     */
+    public void display(String line) {
+        if (!this.headless) {
+            System.out.println(line);
+        }
+    }
+
     public void sendMessage(boolean end, Global.FRAME_TYPE type, Global.ERROR_CODE errorCode, String mainData,
             String extendedData) {
-        Global.sendMessage(out, end, this.protocolVersion, type, errorCode, mainData, extendedData);
+        this.sendFrame(new DataFrame(end, false, false, false, this.version, type.getValue(),
+                errorCode.getValue(), mainData, extendedData));
+    }
+
+    /**
+     * Send a frame in the protocol version agreed on with the server, compressed if
+     * the server agreed to it
+     *
+     * @param frame
+     */
+    public void sendFrame(DataFrame frame) {
+        frame = frame.withVersion(this.version);
+        Global.sendFrame(out, this.outLock, this.compression ? FrameCompressor.compress(frame) : frame);
+        this.lastSent = System.currentTimeMillis();
+    }
+
+    /**
+     * Send a message as numbered TEXT frames, or keep them until the send window
+     * has room. A message larger than MessageAssembler.fragmentSize is split into
+     * several frames, all but the last with the end flag cleared and each with its
+     * position.
+     *
+     * @param message
+     * @param extendedData
+     */
+    public synchronized void sendText(String message, String extendedData) {
+        ArrayList<byte[]> fragments = MessageAssembler.split(message.getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < fragments.size(); i++) {
+            long sequence = this.nextTextSequence++;
+            String fields = Global.addField(extendedData, "seq", sequence);
+            if (fragments.size() > 1) {
+                fields = Global.addField(fields, "part", i);
+            }
+            PendingText text = new PendingText(sequence,
+                    new DataFrame(i == fragments.size() - 1, false, false, false, this.version,
+                            Global.FRAME_TYPE.TEXT.getValue(), Global.ERROR_CODE.NONE.getValue(), fragments.get(i),
+                            fields.getBytes()));
+            if (this.unacknowledged.size() < ChatClient.sendWindow) {
+                this.sendPendingText(text);
+            } else {
+                this.waiting.add(text);
+            }
+        }
+    }
+
+    /**
+     * Whether the server has not acknowledged as many TEXT frames as the window
+     * allows. A client that keeps sending then only queues up messages locally.
+     *
+     * @return
+     */
+    public synchronized boolean isSendWindowFull() {
+        return this.unacknowledged.size() >= ChatClient.sendWindow;
+    }
+
+    /**
+     * Resend the TEXT frames the server has not acknowledged, after rejoining the
+     * room they were sent to
+     */
+    public synchronized void resendUnacknowledged() {
+        for (PendingText text : this.unacknowledged) {
+            this.sendFrame(text.frame);
+        }
+    }
+
+    /**
+     * Forget the TEXT frames that were not acknowledged, after joining another
+     * room
+     */
+    public synchronized void discardUnacknowledged() {
+        this.unacknowledged.clear();
+        this.waiting.clear();
+    }
+
+    /**
+     * The server received every TEXT frame up to the acknowledged number, move the
+     * send window on
+     *
+     * @param frame
+     */
+    public synchronized void handleAckFrame(DataFrame frame) {
+        long acknowledged = Global.getLongField(frame.getExtendedData(), "ack", -1);
+        while (!this.unacknowledged.isEmpty() && this.unacknowledged.peek().sequence <= acknowledged) {
+            this.unacknowledged.poll();
+        }
+        while (!this.waiting.isEmpty() && this.unacknowledged.size() < ChatClient.sendWindow) {
+            this.sendPendingText(this.waiting.poll());
+        }
+    }
+
+    private void sendPendingText(PendingText text) {
+        this.sendFrame(text.frame);
+        this.unacknowledged.add(text);
+    }
+
+    /**
+     * Add a fragment of a large message
+     *
+     * @param frame
+     * @return the whole message once its last fragment is received, otherwise
+     *         null
+     */
+    public DataFrame assembleFragment(DataFrame frame) {
+        String streamId = Global.getField(frame.getExtendedData(), "sid");
+        long part = Global.getLongField(frame.getExtendedData(), "part", -1);
+        MessageAssembler assembler = this.streams.get(streamId);
+        if (assembler == null) {
+            // The beginning of the message was missed
+            if (part != 0) {
+                return null;
+            }
+            assembler = new MessageAssembler();
+            this.streams.put(streamId, assembler);
+        }
+        // A fragment was lost, for example dropped from a full queue on the server,
+        // the message cannot be completed
+        if (part != assembler.getParts() || !assembler.append(frame.getMainDataBytes())) {
+            this.streams.remove(streamId);
+            return null;
+        }
+        if (!frame.getEnd()) {
+            return null;
+        }
+        this.streams.remove(streamId);
+        return new DataFrame(true, false, false, false, frame.getVersion(), frame.getType(), frame.getErrorCode(),
+                assembler.finish(), frame.getExtendedDataBytes());
     }
 
     public void sendErrorFrame(Global.ERROR_CODE errorCode) {
-        Global.sendErrorFrame(out, errorCode);
+        Global.sendErrorFrame(out, this.outLock, this.version, errorCode);
     }
 
     public void initClosing() {
-        System.out.println("Closing the program...");
+        this.display("Closing the program...");
         this.stopSendPingTask();
         this.stopServerTimeoutTask();
         // Send the close frame
@@ -296,12 +718,14 @@ public class ChatClient {
     public void closeSocket() {
         try {
             this.running = false;
-            this.timer.cancel();
+            // The scheduler is shared, only cancel this client's tasks
+            this.stopSendPingTask();
+            this.stopServerTimeoutTask();
             this.in.close();
             this.out.close();
             this.socket.close();
         } catch (Exception ex) {
-            System.out.println(ex);
+            ChatLogger.warn(() -> ex.toString());
         }
     }
 
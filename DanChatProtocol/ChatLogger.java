@@ -0,0 +1,218 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Logs in the background. The calling thread only checks the level, builds the
+ * message and queues it, it never waits for the output. A writer thread takes
+ * the queued records in batches and writes every batch at once, to the
+ * standard output or to a file that is rolled over when it gets too large. If
+ * the queue is full the record is dropped and counted instead of blocking.
+ */
+public class ChatLogger {
+
+    public enum LEVEL {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    // Records below this level are not built
+    public static final LEVEL level = LEVEL.valueOf(System.getProperty("chat.logging.level", "INFO").toUpperCase());
+
+    // The file to log to, the standard output if not set
+    public static final String file = System.getProperty("chat.logging.file");
+
+    // A file that grows past this many bytes is renamed to file.1, file.1 to
+    // file.2 and so on, and a new file is started
+    public static final long maxFileSize = Long.getLong("chat.logging.maxFileSize", 10 * 1024 * 1024);
+
+    // The number of rolled over files kept
+    public static final int maxFiles = Integer.getInteger("chat.logging.maxFiles", 5);
+
+    // The most records waiting for the writer
+    public static final int queueSize = Integer.getInteger("chat.logging.queueSize", 65536);
+
+    // The most records written at once
+    private static final int BATCH_SIZE = 1024;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * A message waiting to be written
+     */
+    private static class Record {
+        private long time;
+        private LEVEL level;
+        private String thread;
+        private String message;
+
+        private Record(long time, LEVEL level, String thread, String message) {
+            this.time = time;
+            this.level = level;
+            this.thread = thread;
+            this.message = message;
+        }
+    }
+
+    private static ArrayBlockingQueue<Record> records = new ArrayBlockingQueue<>(ChatLogger.queueSize);
+
+    private static AtomicLong dropped = new AtomicLong();
+
+    private static OutputStream output;
+
+    // Bytes written to the current file
+    private static long fileSize;
+
+    static {
+        Thread writer = new Thread(ChatLogger::writeRecords, "chat-logger");
+        writer.setDaemon(true);
+        writer.start();
+        // Write out what is still queued when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(ChatLogger::drain));
+    }
+
+    public static boolean isEnabled(LEVEL level) {
+        return level.compareTo(ChatLogger.level) >= 0 && level != LEVEL.OFF;
+    }
+
+    /**
+     * Queue a message if its level is enabled. The message is only built then.
+     *
+     * @param level
+     * @param message
+     */
+    public static void log(LEVEL level, Supplier<String> message) {
+        if (!ChatLogger.isEnabled(level)) {
+            return;
+        }
+        Record record = new Record(System.currentTimeMillis(), level, Thread.currentThread().getName(),
+                message.get());
+        if (!ChatLogger.records.offer(record)) {
+            ChatLogger.dropped.incrementAndGet();
+        }
+    }
+
+    public static void debug(Supplier<String> message) {
+        ChatLogger.log(LEVEL.DEBUG, message);
+    }
+
+    public static void info(Supplier<String> message) {
+        ChatLogger.log(LEVEL.INFO, message);
+    }
+
+    public static void warn(Supplier<String> message) {
+        ChatLogger.log(LEVEL.WARN, message);
+    }
+
+    public static void error(Supplier<String> message) {
+        ChatLogger.log(LEVEL.ERROR, message);
+    }
+
+    /**
+     * The number of records dropped because the queue was full
+     *
+     * @return
+     */
+    public static long getDropped() {
+        return ChatLogger.dropped.get();
+    }
+
+    private static void writeRecords() {
+        ArrayList<Record> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            try {
+                Record first = ChatLogger.records.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                ChatLogger.records.drainTo(batch, BATCH_SIZE - 1);
+                ChatLogger.write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write the records that are still queued
+     */
+    private static void drain() {
+        ArrayList<Record> batch = new ArrayList<>(BATCH_SIZE);
+        ChatLogger.records.drainTo(batch);
+        ChatLogger.write(batch);
+    }
+
+    private static synchronized void write(ArrayList<Record> batch) {
+        StringBuilder text = new StringBuilder();
+        for (Record record : batch) {
+            text.append(TIME_FORMAT.format(Instant.ofEpochMilli(record.time))).append(' ').append(record.level)
+                    .append(" [").append(record.thread).append("] ").append(record.message).append('\n');
+        }
+        long dropped = ChatLogger.dropped.getAndSet(0);
+        if (dropped > 0) {
+            text.append(TIME_FORMAT.format(Instant.now())).append(" WARN [chat-logger] ").append(dropped)
+                    .append(" log records were dropped because the queue was full\n");
+        }
+        if (text.length() == 0) {
+            return;
+        }
+
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            OutputStream output = ChatLogger.getOutput();
+            output.write(bytes);
+            output.flush();
+            ChatLogger.fileSize += bytes.length;
+            if (ChatLogger.file != null && ChatLogger.fileSize >= ChatLogger.maxFileSize) {
+                ChatLogger.rollOver();
+            }
+        } catch (IOException e) {
+            // Fall back to the standard output
+            System.out.print(text);
+        }
+    }
+
+    private static OutputStream getOutput() throws IOException {
+        if (ChatLogger.output == null) {
+            if (ChatLogger.file == null) {
+                ChatLogger.output = new PrintStream(System.out, false);
+            } else {
+                File current = new File(ChatLogger.file);
+                ChatLogger.output = new FileOutputStream(current, true);
+                ChatLogger.fileSize = current.length();
+            }
+        }
+        return ChatLogger.output;
+    }
+
+    /**
+     * Rename the full file and its older copies, dropping the oldest one
+     */
+    private static void rollOver() throws IOException {
+        ChatLogger.output.close();
+        ChatLogger.output = null;
+        new File(ChatLogger.file + "." + ChatLogger.maxFiles).delete();
+        for (int i = ChatLogger.maxFiles - 1; i >= 1; i--) {
+            new File(ChatLogger.file + "." + i).renameTo(new File(ChatLogger.file + "." + (i + 1)));
+        }
+        if (ChatLogger.maxFiles > 0) {
+            new File(ChatLogger.file).renameTo(new File(ChatLogger.file + ".1"));
+        } else {
+            new File(ChatLogger.file).delete();
+        }
+    }
+
+}
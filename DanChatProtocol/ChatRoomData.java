@@ -1,48 +1,300 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Hashtable;
-import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 public class ChatRoomData {
-    private Hashtable<String, DataOutputStream> participants;
-    private ArrayList<DataFrame> messages;
+    private ConcurrentHashMap<String, ChatServer.Handler> participants;
 
-    public ChatRoomData() {
-        this.participants = new Hashtable<>();
-        this.messages = new ArrayList<>();
+    // The node of each participant connected to another node of the cluster
+    private ConcurrentHashMap<String, String> remoteParticipants = new ConcurrentHashMap<>();
+
+    // Held to check a display name against both maps and take it in one step
+    private final Object nameLock = new Object();
+    private MessageHistory history;
+
+    // An immutable copy of the participants used for broadcasting. Messages are far
+    // more frequent than joins and leaves, so the copy is only rebuilt when the
+    // participants change.
+    private volatile ChatServer.Handler[] participantSnapshot = new ChatServer.Handler[0];
+
+    // The room's messages on disk, null when logging is off
+    private MessageLog log;
+
+    // Rooms without an index scan their history in parallel from this many
+    // messages on. A sequential scan takes about 20 microseconds per thousand
+    // messages in ScanBenchmark, so past a few thousand it outweighs handing the
+    // work to the common pool. The default must stay below the history's
+    // retention or the parallel scan never runs.
+    public static final int parallelScanThreshold = Integer.getInteger("chat.search.parallelThreshold",
+            Math.min(2000, MessageHistory.maxMessages));
+
+    // The words of the recent messages, null when indexing is off
+    private SearchIndex index = SearchIndex.enabled ? new SearchIndex() : null;
+
+    /**
+     * The client a display name last sent numbered TEXT frames from, and the
+     * number of the last frame accepted from it
+     */
+    private static class Sender {
+        private long clientId = -1;
+        private long lastSequence = -1;
+    }
+
+    private ConcurrentHashMap<String, Sender> senders = new ConcurrentHashMap<>();
+
+    // How many messages the room receives per second
+    private RateMeter messageRate = new RateMeter();
+
+    public RateMeter getMessageRate() {
+        return this.messageRate;
+    }
+
+    public ChatRoomData(String roomName) {
+        this.participants = new ConcurrentHashMap<>();
+
+        if (MessageLog.isEnabled()) {
+            try {
+                this.log = new MessageLog(roomName);
+            } catch (IOException e) {
+                ChatLogger.warn(() -> "The history of room " + roomName + " cannot be logged. " + e);
+            }
+        }
+
+        // The recent messages continue the numbering of the logged ones
+        this.history = new MessageHistory(this.log != null ? this.log.getNextSequence() : 0);
     }
 
-    public Hashtable<String, DataOutputStream> getParticipants() {
+    public ConcurrentHashMap<String, ChatServer.Handler> getParticipants() {
         return this.participants;
     }
 
-    public synchronized void addParticipant(String displayName, DataOutputStream out) {
-        this.participants.put(displayName, out);
+    /**
+     * Add a participant unless the display name is taken
+     * 
+     * @param displayName
+     * @param handler
+     * @return
+     */
+    public boolean addParticipant(String displayName, ChatServer.Handler handler) {
+        synchronized (this.nameLock) {
+            // The name may be taken on another node
+            if (this.remoteParticipants.containsKey(displayName)) {
+                return false;
+            }
+            if (this.participants.putIfAbsent(displayName, handler) != null) {
+                return false;
+            }
+        }
+        this.rebuildParticipantSnapshot();
+        return true;
+    }
+
+    /**
+     * Remove a participant unless the display name belongs to someone else by now
+     * 
+     * @param displayName
+     * @param handler
+     * @return whether the participant was removed
+     */
+    public boolean removeParticipant(String displayName, ChatServer.Handler handler) {
+        if (this.participants.remove(displayName, handler)) {
+            this.rebuildParticipantSnapshot();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take a display name for a participant connected to another node of the
+     * cluster
+     * 
+     * @param displayName
+     * @param node
+     */
+    public void addRemoteParticipant(String displayName, String node) {
+        synchronized (this.nameLock) {
+            this.remoteParticipants.put(displayName, node);
+        }
+    }
+
+    public void removeRemoteParticipant(String displayName, String node) {
+        this.remoteParticipants.remove(displayName, node);
+    }
+
+    /**
+     * Free the display names of all the participants connected to a node
+     * 
+     * @param node
+     */
+    public void removeRemoteParticipants(String node) {
+        this.remoteParticipants.values().removeIf(node::equals);
+    }
+
+    private synchronized void rebuildParticipantSnapshot() {
+        this.participantSnapshot = this.participants.values().toArray(new ChatServer.Handler[0]);
+    }
+
+    /**
+     * All the participants at the time of the last join or leave. The array is
+     * shared and must not be modified.
+     * 
+     * @return
+     */
+    public ChatServer.Handler[] getParticipantSnapshot() {
+        return this.participantSnapshot;
+    }
+
+    /**
+     * The number of the last TEXT frame accepted from a client under a display
+     * name
+     * 
+     * @param displayName
+     * @param clientId
+     * @return -1 if none was accepted from that client
+     */
+    public long getLastTextSequence(String displayName, long clientId) {
+        Sender sender = this.senders.get(displayName);
+        if (sender == null) {
+            return -1;
+        }
+        synchronized (sender) {
+            return sender.clientId == clientId ? sender.lastSequence : -1;
+        }
+    }
+
+    /**
+     * Remember a TEXT frame accepted from a client. A new client under the same
+     * display name starts a new numbering.
+     * 
+     * @param displayName
+     * @param clientId
+     * @param sequence
+     */
+    public void recordTextSequence(String displayName, long clientId, long sequence) {
+        Sender sender = this.senders.computeIfAbsent(displayName, name -> new Sender());
+        synchronized (sender) {
+            if (sender.clientId != clientId) {
+                sender.clientId = clientId;
+                sender.lastSequence = -1;
+            }
+            sender.lastSequence = Math.max(sender.lastSequence, sequence);
+        }
     }
 
-    public void removeParticipant(String displayName) {
-        this.participants.remove(displayName);
+    public MessageHistory getHistory() {
+        return this.history;
     }
 
-    public ArrayList<DataOutputStream> getChatmateOutputStreams(String participantName) {
+    /**
+     * Record a complete message, the UTF-8 text of one TEXT frame or of all the
+     * fragments of a message
+     *
+     * @param message
+     * @return the sequence number of the message, -1 if it could not be logged
+     */
+    public synchronized long addMessage(byte[] message) {
+        long timestamp = System.currentTimeMillis();
 
-        ArrayList<DataOutputStream> results = new ArrayList<>();
-        for (String key : participants.keySet()) {
-            // Skip the participant
-            if (key.equals(participantName)) {
-                continue;
+        // The message is refused if it cannot be logged, so that the history and the
+        // log never number the same message differently
+        if (this.log != null) {
+            try {
+                this.log.append(timestamp, message);
+            } catch (IOException e) {
+                ChatLogger.warn(() -> "A message cannot be logged and is refused. " + e);
+                return -1;
             }
-            results.add(participants.get(key));
         }
-        return results;
+        this.messageRate.mark();
+        long sequence = this.history.append(message, timestamp);
 
+        // Index the words of the message, and forget the messages that dropped out of
+        // the history
+        if (this.index != null) {
+            this.index.add(sequence, new String(message, StandardCharsets.UTF_8));
+            this.index.forgetBefore(this.history.getFirstSequence());
+        }
+        return sequence;
+    }
+
+    /**
+     * Find up to limit messages containing every word of the query, from a
+     * sequence number on
+     * 
+     * @param query
+     * @param fromSequence
+     * @param limit
+     * @return
+     */
+    public MessageHistory.Entry[] search(String query, long fromSequence, int limit) {
+        ArrayList<MessageHistory.Entry> messages = new ArrayList<>();
+        if (this.index != null) {
+            for (long sequence : this.index.search(query, fromSequence, limit)) {
+                // The message may have dropped out of the history since the lookup
+                MessageHistory.Entry message = this.history.get(sequence);
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+        } else {
+            // Without an index, scan a copy of the recent history for the same words
+            MessageHistory.Entry[] snapshot = this.history.snapshot(fromSequence, Integer.MAX_VALUE);
+            return ChatRoomData.scan(snapshot, new SearchIndex.Query(query), limit,
+                    snapshot.length >= ChatRoomData.parallelScanThreshold
+                            && Runtime.getRuntime().availableProcessors() > 1);
+        }
+        return messages.toArray(new MessageHistory.Entry[0]);
     }
 
-    public ArrayList<DataFrame> getMessages() {
-        return this.messages;
+    /**
+     * Find up to limit messages matching the query, in the order of the given
+     * messages. A parallel scan splits the messages between the common
+     * fork-join pool's threads.
+     * 
+     * @param messages
+     * @param query
+     * @param limit
+     * @param parallel
+     * @return
+     */
+    public static MessageHistory.Entry[] scan(MessageHistory.Entry[] messages, SearchIndex.Query query, int limit,
+            boolean parallel) {
+        Stream<MessageHistory.Entry> stream = Arrays.stream(messages);
+        if (parallel) {
+            stream = stream.parallel();
+        }
+        return stream.filter(message -> query.matches(message.getData())).limit(limit)
+                .toArray(MessageHistory.Entry[]::new);
+    }
+
+    /**
+     * Copy out up to limit messages starting at a sequence number, oldest first.
+     * Messages that are no longer in the recent history are read from the log.
+     * 
+     * @param fromSequence
+     * @param limit
+     * @return
+     */
+    public MessageHistory.Entry[] getMessages(long fromSequence, int limit) {
+        ArrayList<MessageHistory.Entry> messages = new ArrayList<>();
+        if (this.log != null && fromSequence < this.history.getFirstSequence()) {
+            messages.addAll(this.log.read(fromSequence, limit));
+        }
+
+        // Continue with the recent history
+        if (messages.size() < limit) {
+            long nextSequence = messages.isEmpty() ? fromSequence
+                    : messages.get(messages.size() - 1).getSequence() + 1;
+            messages.addAll(Arrays.asList(this.history.snapshot(nextSequence, limit - messages.size())));
+        }
+        return messages.toArray(new MessageHistory.Entry[0]);
     }
 
-    public synchronized void addMessage(DataFrame dataFrame) {
-        this.messages.add(dataFrame);
+    public long getNextSequence() {
+        return this.history.getNextSequence();
     }
 
-}
\ No newline at end of file
+}
@@ -1,12 +1,20 @@
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.ArrayList;
-import java.util.Hashtable;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 public class ChatServer {
 
@@ -14,14 +22,40 @@ public class ChatServer {
     // service
     public static final String secret = "DanChatSecret";
 
-    // The protocol version of the server
-    public static final int serverVersion = 1;
+    // Port the clients connect to
+    public static final int port = Integer.getInteger("chat.port", 59001);
 
-    // A hashtable used to keep track of the chatrooms and each chatroom's
-    // data including participants and historical messages
-    private static Hashtable<String, ChatRoomData> chatRooms = new Hashtable<>();
+    // The highest protocol version of the server. Clients that ask for a lower
+    // version are served in that version.
+    public static final int serverVersion = Integer.getInteger("chat.protocolVersion", 2);
 
-    public static Hashtable<String, ChatRoomData> getChatrooms() {
+    // The number of messages sent for a RECOVERY request that does not ask for a
+    // page size, and the largest page size a client can ask for
+    public static final int recoveryPageSize = Integer.getInteger("chat.recovery.pageSize", 100);
+    public static final int recoveryMaxPageSize = Integer.getInteger("chat.recovery.maxPageSize", 1000);
+
+    // The same for the results of a SEARCH request
+    public static final int searchPageSize = Integer.getInteger("chat.search.pageSize", 50);
+    public static final int searchMaxPageSize = Integer.getInteger("chat.search.maxPageSize", 500);
+
+    // A client that numbers its TEXT frames gets one cumulative ACK per batch of
+    // frames read, or after this many TEXT frames if the batch is longer
+    public static final int ackInterval = Integer.getInteger("chat.ackInterval", 16);
+
+    // Milliseconds without any frame from a client before it is disconnected
+    public static final long clientTimeout = Long.getLong("chat.clientTimeout", 10000);
+
+    // The threads writing the queued frames of blocking clients, in pool mode. In
+    // virtual mode each write has a virtual thread.
+    public static final int outboundWriterThreads = Integer.getInteger("chat.outbound.writers", 64);
+
+    // A concurrent map used to keep track of the chatrooms and each chatroom's
+    // data including participants and historical messages. Rooms are created and
+    // joined with atomic operations, so clients in different rooms never wait for
+    // each other.
+    private static ConcurrentHashMap<String, ChatRoomData> chatRooms = new ConcurrentHashMap<>();
+
+    public static ConcurrentHashMap<String, ChatRoomData> getChatrooms() {
         return ChatServer.chatRooms;
     }
 
@@ -31,69 +65,152 @@ public class ChatServer {
      * @param chatRoomName
      * @return
      */
-    public static synchronized Global.ERROR_CODE createChatRoom(String chatRoomName) {
-
-        // Check whether the room name is taken
-        if (chatRooms.containsKey(chatRoomName)) {
+    public static Global.ERROR_CODE createChatRoom(String chatRoomName) {
+
+        // Add a new room unless the room name is taken. The room is only created, and
+        // its log opened, if the name is free.
+        boolean[] created = { false };
+        chatRooms.computeIfAbsent(chatRoomName, name -> {
+            created[0] = true;
+            return new ChatRoomData(name);
+        });
+        if (!created[0]) {
             return Global.ERROR_CODE.INVALID_ROOM_NAME;
         }
-
-        // Add a new room
-        ChatRoomData data = new ChatRoomData();
-        chatRooms.put(chatRoomName, data);
+        ClusterNode.publishRoom(chatRoomName);
 
         return Global.ERROR_CODE.NONE;
     }
 
+    /**
+     * Recreate the chatrooms that have a message log on disk. Only the log indexes
+     * are read, the messages stay on disk until they are requested.
+     */
+    public static void loadChatRooms() {
+        if (!MessageLog.isEnabled()) {
+            return;
+        }
+        for (String roomName : MessageLog.getLoggedRooms()) {
+            chatRooms.put(roomName, new ChatRoomData(roomName));
+        }
+        ChatLogger.info(() -> "Loaded " + chatRooms.size() + " chatrooms from " + MessageLog.directory);
+    }
+
     /**
      * Add a participant to a chatroom
      * 
      * @param chatRoomName
      * @param displayName
-     * @param out
+     * @param handler
      * @return
      */
-    public static synchronized Global.ERROR_CODE addChatRoomParticipant(String chatRoomName, String displayName,
-            DataOutputStream out) {
+    public static Global.ERROR_CODE addChatRoomParticipant(String chatRoomName, String displayName,
+            Handler handler) {
 
         // Check whether the chat room exists
-        if (!ChatServer.chatRooms.containsKey(chatRoomName)) {
+        ChatRoomData roomData = ChatServer.chatRooms.get(chatRoomName);
+        if (roomData == null) {
             return Global.ERROR_CODE.INVALID_ROOM_NAME;
         }
 
-        // Check whether the display name is unique
-        ChatRoomData roomData = ChatServer.chatRooms.get(chatRoomName);
-        if (roomData.getParticipants().containsKey(displayName)) {
+        // Join the room unless the display name is taken
+        if (!roomData.addParticipant(displayName, handler)) {
             return Global.ERROR_CODE.INVALID_DISPLAY_NAME;
         }
-
-        // Join the room
-        roomData.addParticipant(displayName, out);
+        ClusterNode.publishJoin(chatRoomName, displayName);
 
         return Global.ERROR_CODE.NONE;
     }
 
+    /**
+     * Send a frame to the participants of a room on this server
+     * 
+     * @param roomData
+     * @param frame
+     * @param sender   the participant that sent the frame, who does not get it
+     *                 back, or null
+     */
+    public static void broadcast(ChatRoomData roomData, DataFrame frame, Handler sender) {
+
+        // Encode the frame once for every combination of frame layout and
+        // compression in use, the participants that use the same one are sent the
+        // same bytes
+        long start = System.nanoTime();
+        byte[][] encodedFrames = new byte[4][];
+
+        for (Handler participant : roomData.getParticipantSnapshot()) {
+            if (participant == sender) {
+                continue;
+            }
+            int encoding = (participant.version >= DataFrame.COMPACT_VERSION ? 2 : 0)
+                    + (participant.compression ? 1 : 0);
+            if (encodedFrames[encoding] == null) {
+                encodedFrames[encoding] = Global.encodeFrameBytes(participant.prepareFrame(frame));
+            }
+            participant.sendEncodedFrame(encodedFrames[encoding]);
+            ServerMetrics.recordFrameOut(frame.getType(), encodedFrames[encoding].length);
+        }
+        ServerMetrics.recordFanout(System.nanoTime() - start);
+
+    }
+
     /**
      * The client handler task.
      */
     public static class Handler implements Runnable {
 
         // Flag for whether the receiving message loop should run
-        private boolean running = true;
+        private volatile boolean running = true;
 
         // Socket object
         private Socket socket;
 
+        // Non-blocking connection, set when the handler is driven by an event loop
+        private ChannelConnection connection;
+
+        public ChannelConnection getConnection() {
+            return this.connection;
+        }
+
         // Input stream
         private DataInputStream in;
 
-        // Output stream
-        private DataOutputStream out;
+        // Output stream, opened by the client's thread when it starts
+        private volatile DataOutputStream out;
 
         public DataOutputStream getOutputStream() {
             return this.out;
         }
 
+        // Held by every thread writing to the output stream
+        private final ReentrantLock outLock = new ReentrantLock();
+
+        // Frames broadcast to this client that are waiting to be written
+        private OutboundQueue outboundQueue = new OutboundQueue();
+
+        public OutboundQueue getOutboundQueue() {
+            return this.outboundQueue;
+        }
+
+        // Writes the queued frames of blocking clients. A queue is drained by one
+        // task at a time, so at most one task per client waits for a writer.
+        private static ExecutorService outboundWriters = Executors.newFixedThreadPool(ChatServer.outboundWriterThreads);
+
+        // The open connections, for the metrics of their queues
+        private static Set<Handler> connections = ConcurrentHashMap.newKeySet();
+
+        public static Set<Handler> getConnections() {
+            return Handler.connections;
+        }
+
+        // Numbers the connections in the metrics
+        private static AtomicLong nextConnectionId = new AtomicLong();
+        private long connectionId = Handler.nextConnectionId.incrementAndGet();
+
+        public long getConnectionId() {
+            return this.connectionId;
+        }
+
         // The client's room name
         private String roomName;
 
@@ -146,43 +263,58 @@ public class ChatServer {
             return this.closingState;
         }
 
-        private Timer timeoutTimer;
+        // All handlers share one timing wheel with a tenth of a second precision.
+        // Every frame received from the client restarts its timeout.
+        private static TimingWheel timeoutWheel = new TimingWheel("client-timeouts", 100, 512);
 
-        private TimerTask clientTimeoutTask;
+        private TimingWheel.Timeout clientTimeout = Handler.timeoutWheel.newTimeout(ChatServer.clientTimeout,
+                new ClientTimeout(this));
 
         public void stopClientTimeoutTask() {
-            if (this.clientTimeoutTask != null) {
-                this.clientTimeoutTask.cancel();
-            }
+            this.clientTimeout.stop();
         }
 
         public void setClientTimeoutTask() {
-            this.clientTimeoutTask = new ClientTimeout(this);
-            this.timeoutTimer.schedule(this.clientTimeoutTask, 10000);
+            this.clientTimeout.start();
         }
 
+        // The index in ServerMetrics.STATES of the state the connection is counted
+        // in, -1 once the connection is closed
+        private AtomicInteger countedState = new AtomicInteger(0);
+
         public void setCurrentState(ServerState state) {
             this.currentState = state;
 
             this.stopClientTimeoutTask();
 
             String str = "";
+            int stateIndex = 0;
             if (state.equals(this.closedState)) {
                 str = "CLOSED";
             } else if (state.equals(this.openState)) {
                 str = "OPEN";
+                stateIndex = 1;
                 // Close the socket if there is no ping from the client
                 this.setClientTimeoutTask();
             } else if (state.equals(this.joinedState)) {
                 str = "JOINED";
+                stateIndex = 2;
                 // Close the socket if there is no ping from the client
                 this.setClientTimeoutTask();
             } else if (state.equals(this.closingState)) {
                 str = "CLOSING";
+                stateIndex = 3;
             }
 
-            System.out
-                    .println("Client is in " + str + " state. Room: " + this.roomName + " - Name: " + this.displayName);
+            // A connection that was closed meanwhile is no longer counted
+            int counted = this.countedState.get();
+            if (counted >= 0 && this.countedState.compareAndSet(counted, stateIndex)) {
+                ServerMetrics.moveConnection(counted, stateIndex);
+            }
+
+            String stateName = str;
+            ChatLogger.info(() -> "Client is in " + stateName + " state. Room: " + this.roomName + " - Name: "
+                    + this.displayName);
 
         }
 
@@ -199,7 +331,25 @@ public class ChatServer {
             this.closingState = new ServerClosingState(this);
             // On startup, the current state is closed
             this.currentState = this.closedState;
-            this.timeoutTimer = new Timer();
+            ServerMetrics.moveConnection(-1, this.countedState.get());
+            Handler.connections.add(this);
+        }
+
+        /**
+         * Constructs a handler for a non-blocking connection. The event loop that owns
+         * the connection reads the frames and passes them to handleMessage.
+         */
+        public Handler(ChannelConnection connection) {
+            this.connection = connection;
+            this.out = connection.createOutputStream();
+            this.closedState = new ServerClosedState(this);
+            this.openState = new ServerOpenState(this);
+            this.joinedState = new ServerJoinedState(this);
+            this.closingState = new ServerClosingState(this);
+            // On startup, the current state is closed
+            this.currentState = this.closedState;
+            ServerMetrics.moveConnection(-1, this.countedState.get());
+            Handler.connections.add(this);
         }
 
         /**
@@ -211,94 +361,398 @@ public class ChatServer {
         public void run() {
             try {
                 this.in = new DataInputStream(socket.getInputStream());
-                this.out = new DataOutputStream(socket.getOutputStream());
+                // The replies are buffered and written together at the end of each batch
+                // of frames the client sent
+                this.out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(), OutboundQueue.batchSize));
 
-                // Accept messages from this client and broadcast them.
+                // Accept messages from this client and broadcast them. The reads block, so
+                // an idle client does not use any CPU.
                 while (this.running) {
-                    if (in.available() > 0) {
-                        int messageLength = in.readInt();
-                        // Create a byte array
-                        byte[] message = new byte[messageLength];
-                        // Read the byte stream
-                        in.readFully(message, 0, messageLength);
-                        // Parse the byte array into a frame
-                        DataFrame frame = new DataFrame();
-                        boolean success = frame.parseFromByteArray(message);
-                        // The frame is received successfully, process the frame
-                        if (success) {
-
-                            // For any error frame, display the error message and close the socket
-                            // immediately
-                            if (frame.getType() == Global.FRAME_TYPE.ERROR.getValue()) {
-                                this.handleErrorFrame(frame);
-                                continue;
-                            }
-
-                            // Handle the close frames
-                            if (frame.getType() == Global.FRAME_TYPE.CLOSE.getValue()) {
-                                this.handleCloseFrame(frame);
-                                continue;
-                            }
-
-                            // Handle the frame depending on the protocol's current state
-                            this.currentState.handleDataFrame(frame);
-
-                        } else {
-                            // Send an error frame saying the received frame could not be parsed
-                            Global.sendErrorFrame(out, Global.ERROR_CODE.CORRUPT_FRAME);
-
-                            // Received a corrupt frame, close the socket immediately
-                            this.closeSocket();
-                        }
+                    int messageLength = in.readInt();
+                    // Refuse a frame that is too large before allocating anything for it
+                    if (!BufferPool.isValidFrameLength(messageLength)) {
+                        this.sendErrorFrame(Global.ERROR_CODE.INVALID_DATA_CONTENT);
+                        break;
+                    }
+                    // Read the byte stream into a pooled buffer, the frame's data is copied
+                    // out of it when the frame is parsed
+                    ByteBuffer message = BufferPool.heapBuffers.acquire(messageLength);
+                    try {
+                        in.readFully(message.array(), 0, messageLength);
+                        message.limit(messageLength);
+                        // Process the frame
+                        this.handleMessage(message);
+                    } finally {
+                        BufferPool.heapBuffers.release(message);
+                    }
+                    // Send the replies once the client has no more frames waiting
+                    if (in.available() == 0) {
+                        this.finishBatch();
                     }
                 }
 
+            } catch (EOFException e) {
+                // The client closed the connection
             } catch (Exception e) {
-                System.out.println(e);
+                // Reading fails once the socket is closed, this is expected
+                if (this.running) {
+                    ChatLogger.warn(() -> e.toString());
+                }
             } finally {
                 this.closeSocket();
             }
         }
 
+        /**
+         * Parse a received frame from the buffer's position up to its limit and
+         * process it
+         * 
+         * @param message
+         */
+        public void handleMessage(ByteBuffer message) {
+            // Any frame shows the client is still there
+            this.clientTimeout.touch();
+            int messageLength = message.remaining();
+
+            // Parse the buffer into a frame
+            DataFrame frame = new DataFrame();
+            boolean success = frame.parseFromByteBuffer(message);
+            // A compressed frame is only valid once compression was agreed on
+            if (success && frame.getRsv1()) {
+                frame = this.compression ? FrameCompressor.decompress(frame) : null;
+                success = frame != null;
+            }
+            // The frame is received successfully, process the frame
+            if (success) {
+                ServerMetrics.recordFrameIn(frame.getType(), 4 + messageLength);
+
+                // For any error frame, display the error message and close the socket
+                // immediately
+                if (frame.getType() == Global.FRAME_TYPE.ERROR.getValue()) {
+                    this.handleErrorFrame(frame);
+                    return;
+                }
+
+                // Acknowledge the TEXT frames received so far before replying to any other
+                // frame, so the client sees the ACK in the state it sent the frames in
+                if (frame.getType() != Global.FRAME_TYPE.TEXT.getValue()) {
+                    this.sendAcknowledgement();
+                }
+
+                // Handle the close frames
+                if (frame.getType() == Global.FRAME_TYPE.CLOSE.getValue()) {
+                    this.handleCloseFrame(frame);
+                    return;
+                }
+
+                // Handle the frame depending on the protocol's current state
+                this.currentState.handleDataFrame(frame);
+
+            } else {
+                // Send an error frame saying the received frame could not be parsed
+                this.sendErrorFrame(Global.ERROR_CODE.CORRUPT_FRAME);
+
+                // Received a corrupt frame, close the socket immediately
+                this.closeSocket();
+            }
+        }
+
         public void leaveCurrentRoom() {
+            // The socket may be closed by another thread, work on a single read
+            String roomName = this.roomName;
+            // Not in a room
+            if (roomName == null || roomName.equals("")) {
+                return;
+            }
             // Get room data
-            ChatRoomData roomData = ChatServer.chatRooms.get(this.roomName);
+            ChatRoomData roomData = ChatServer.chatRooms.get(roomName);
             // If there is no room data, return
             if (roomData == null) {
                 return;
             }
-            // Remove the participant from the room
-            roomData.removeParticipant(this.displayName);
+            // Remove the participant from the room, unless the name already belongs to
+            // someone else
+            if (roomData.removeParticipant(this.displayName, this)) {
+                ClusterNode.publishLeave(roomName, this.displayName);
+            }
+            // A message that was not completed is dropped
+            this.assembler.reset();
             this.roomName = "";
             this.displayName = "";
         }
 
         public void sendMessageToAllChatmates(boolean end, Global.FRAME_TYPE type, int version,
                 Global.ERROR_CODE errorCode, String mainData, String extendedData) {
+            this.sendFrameToAllChatmates(new DataFrame(end, false, false, false, version, type.getValue(),
+                    errorCode.getValue(), mainData, extendedData));
+        }
+
+        public void sendFrameToAllChatmates(DataFrame frame) {
+
+            // Get the room
+            ChatRoomData roomData = ChatServer.chatRooms.get(this.roomName);
+            if (roomData == null) {
+                return;
+            }
+
+            // Send the message to everyone in the room except this client
+            ChatServer.broadcast(roomData, frame, this);
+
+        }
 
-            // Get all chatmates
-            ArrayList<DataOutputStream> outputs = ChatServer.chatRooms.get(this.roomName)
-                    .getChatmateOutputStreams(this.displayName);
+        /**
+         * Queue a frame that is already encoded with its length prefix. The array is
+         * shared with other clients and must not be modified.
+         * 
+         * @param encodedFrame
+         */
+        public void sendEncodedFrame(byte[] encodedFrame) {
+            if (!this.running) {
+                return;
+            }
 
-            // Send the message
-            for (DataOutputStream outStream : outputs) {
-                Global.sendMessage(outStream, end, version, type, errorCode, mainData, extendedData);
+            // A client that cannot keep up with the room is disconnected
+            if (!this.outboundQueue.offer(encodedFrame)) {
+                ChatLogger.warn(() -> "Client cannot keep up. Closing the socket... Room: " + this.roomName
+                        + " - Name: " + this.displayName);
+                this.closeSocket();
+                return;
             }
 
+            if (this.connection != null) {
+                // The event loop writes the queue when the channel is writable
+                this.connection.requestFlush();
+            } else if (this.outboundQueue.startDraining()) {
+                Handler.outboundWriters.execute(this::drainOutboundQueue);
+            }
+        }
+
+        /**
+         * Write all the queued frames of a blocking client
+         */
+        private void drainOutboundQueue() {
+            try {
+                this.outLock.lock();
+                try {
+                    byte[] frame;
+                    while ((frame = this.outboundQueue.poll()) != null) {
+                        this.out.write(frame, 0, frame.length);
+                    }
+                    this.out.flush();
+                } finally {
+                    this.outLock.unlock();
+                }
+            } catch (Exception e) {
+                this.closeSocket();
+            } finally {
+                this.outboundQueue.finishDraining();
+            }
+
+            // A frame may have been queued after the last poll
+            if (this.running && !this.outboundQueue.isEmpty() && this.outboundQueue.startDraining()) {
+                Handler.outboundWriters.execute(this::drainOutboundQueue);
+            }
         }
 
+        /**
+         * Queue a reply to the client. The replies are written when the handler
+         * flushes its output after processing the client's frames.
+         */
         public void sendMessage(boolean end, Global.FRAME_TYPE type, Global.ERROR_CODE errorCode, String mainData,
                 String extendedData) {
-            Global.sendMessage(this.out, end, ChatServer.serverVersion, type, errorCode, mainData, extendedData);
+            this.sendFrame(new DataFrame(end, false, false, false, this.version, type.getValue(),
+                    errorCode.getValue(), mainData, extendedData));
+        }
+
+        public void sendFrame(DataFrame frame) {
+            frame = this.prepareFrame(frame);
+            ServerMetrics.recordFrameOut(frame.getType(), 4 + frame.getEncodedLength());
+            Global.writeFrame(this.out, this.outLock, frame);
+        }
+
+        /**
+         * The frame in the protocol version of the client, compressed if the client
+         * agreed to it
+         *
+         * @param frame
+         * @return
+         */
+        private DataFrame prepareFrame(DataFrame frame) {
+            frame = frame.withVersion(this.version);
+            return this.compression ? FrameCompressor.compress(frame) : frame;
+        }
+
+        // The protocol version agreed on in the OPEN handshake. Until then the client
+        // is sent version 1 frames, which every client can read.
+        private volatile int version = 1;
+
+        public int getProtocolVersion() {
+            return this.version;
+        }
+
+        public void setProtocolVersion(int version) {
+            this.version = version;
+        }
+
+        // Whether the client agreed to compress frames in the OPEN handshake
+        private volatile boolean compression = false;
+
+        public boolean isCompressionEnabled() {
+            return this.compression;
+        }
+
+        public void setCompressionEnabled(boolean compression) {
+            this.compression = compression;
+        }
+
+        // The sequence number of the last TEXT frame received from the client, and
+        // how many TEXT frames have not been acknowledged yet
+        private long lastTextSequence = -1;
+        private int unacknowledged = 0;
+
+        public long getLastTextSequence() {
+            return this.lastTextSequence;
+        }
+
+        // The id the client numbers its TEXT frames under, -1 if it sent none
+        private long clientId = -1;
+
+        public long getClientId() {
+            return this.clientId;
+        }
+
+        /**
+         * Continue the numbering of a client that rejoins a room, so that the TEXT
+         * frames it resends are not recorded twice
+         *
+         * @param clientId
+         * @param lastTextSequence the last TEXT frame the room accepted from it
+         */
+        public void resumeTextSequence(long clientId, long lastTextSequence) {
+            this.clientId = clientId;
+            this.lastTextSequence = Math.max(this.lastTextSequence, lastTextSequence);
+        }
+
+        // Collects the fragments of the message the client is sending
+        private MessageAssembler assembler = new MessageAssembler();
+
+        public MessageAssembler getAssembler() {
+            return this.assembler;
+        }
+
+        // The fragments of a message are relayed with a stream id unique to the
+        // server, so that clients can tell apart the messages of several senders
+        private static AtomicLong nextStreamId = new AtomicLong();
+        private long streamId;
+
+        public long getStreamId() {
+            return this.streamId;
         }
 
+        /**
+         * Start relaying the fragments of a new message
+         *
+         * @return the id of its stream
+         */
+        public long startStream() {
+            this.streamId = Handler.newStreamId();
+            return this.streamId;
+        }
+
+        /**
+         * A stream id no other message relayed by this server uses
+         *
+         * @return
+         */
+        public static long newStreamId() {
+            return Handler.nextStreamId.incrementAndGet();
+        }
+
+        /**
+         * Record a TEXT frame the client numbered. It is acknowledged at the end of
+         * the batch, or now if enough frames are waiting for an ACK.
+         *
+         * @param sequence
+         */
+        public void acknowledge(long sequence) {
+            this.lastTextSequence = Math.max(this.lastTextSequence, sequence);
+            if (++this.unacknowledged >= ChatServer.ackInterval) {
+                this.sendAcknowledgement();
+            }
+        }
+
+        /**
+         * Acknowledge every TEXT frame up to the last one received
+         */
+        public void sendAcknowledgement() {
+            if (this.unacknowledged == 0) {
+                return;
+            }
+            this.unacknowledged = 0;
+            this.sendMessage(true, Global.FRAME_TYPE.ACK, Global.ERROR_CODE.NONE, "",
+                    Global.addField("", "ack", this.lastTextSequence));
+        }
+
+        /**
+         * Called after the frames the client sent together have been processed:
+         * acknowledge them and send all the replies
+         */
+        public void finishBatch() {
+            this.sendAcknowledgement();
+            this.flushOutput();
+        }
+
+        /**
+         * Write the queued replies to the client
+         */
+        public void flushOutput() {
+            try {
+                this.outLock.lock();
+                try {
+                    this.out.flush();
+                } finally {
+                    this.outLock.unlock();
+                }
+            } catch (Exception e) {
+                if (this.running) {
+                    ChatLogger.warn(() -> e.toString());
+                }
+            }
+        }
+
+        /**
+         * Write the queued replies unless another thread is writing to the client. A
+         * writer blocked on a client that stopped reading keeps the lock until the
+         * socket is closed, and a close must not wait for it.
+         */
+        private void flushOutputUnlessBlocked() {
+            if (!this.outLock.tryLock()) {
+                return;
+            }
+            try {
+                this.out.flush();
+            } catch (Exception e) {
+                if (this.running) {
+                    ChatLogger.warn(() -> e.toString());
+                }
+            } finally {
+                this.outLock.unlock();
+            }
+        }
+
+        /**
+         * Send an error frame right away, without waiting for the end of the batch
+         */
         public void sendErrorFrame(Global.ERROR_CODE errorCode) {
-            Global.sendErrorFrame(out, errorCode);
+            this.sendMessage(true, Global.FRAME_TYPE.ERROR, errorCode, "", "");
+            this.flushOutput();
         }
 
         public void handleErrorFrame(DataFrame frame) {
-            // Display the appropriate error message
-            Global.displayErrorMessage(Global.ERROR_CODE.values()[frame.getErrorCode()]);
+            // Log the appropriate error message
+            Global.ERROR_CODE errorCode = Global.ERROR_CODE.values()[frame.getErrorCode()];
+            ChatLogger.info(() -> "Client sent an error. " + Global.getErrorMessage(errorCode));
             // Close the socket
             this.closeSocket();
         }
@@ -328,21 +782,34 @@ public class ChatServer {
         public void handlePingFrame() {
             // Reply a pong back to the client
             this.sendMessage(true, Global.FRAME_TYPE.PONG, Global.ERROR_CODE.NONE, "", "");
-            // Reset the current timeout timer
-            this.stopClientTimeoutTask();
-            this.setClientTimeoutTask();
-            // System.out.println("Reset the timeout timer...");
+            // The timeout was already restarted when the frame was received
         }
 
         public void closeSocket() {
             try {
                 this.running = false;
-                this.timeoutTimer.cancel();
+                // Stop counting the connection, once
+                int counted = this.countedState.getAndSet(-1);
+                if (counted >= 0) {
+                    ServerMetrics.moveConnection(counted, -1);
+                }
+                Handler.connections.remove(this);
+                // The timing wheel is shared, only stop this client's timeout
+                this.stopClientTimeoutTask();
+                // Stop receiving the room's messages
+                this.leaveCurrentRoom();
+                this.outboundQueue.clear();
+                // Send the replies that are still buffered, such as a CLOSE reply
+                this.flushOutputUnlessBlocked();
+                if (this.connection != null) {
+                    this.connection.close();
+                    return;
+                }
                 this.in.close();
                 this.out.close();
                 this.socket.close();
             } catch (Exception ex) {
-                System.out.println(ex);
+                ChatLogger.warn(() -> ex.toString());
             }
         }
 
@@ -350,14 +817,87 @@ public class ChatServer {
 
     public static void main(String[] args) throws Exception {
 
-        System.out.println("The chat server is running...");
-        var pool = Executors.newFixedThreadPool(500);
-        try (var listener = new ServerSocket(59001)) {
+        // The execution mode is the optional first argument
+        String mode = args.length > 0 ? args[0].toLowerCase() : "pool";
+
+        // An event loop that waited for room in a client's queue would stall every
+        // other client it serves
+        if (mode.equals("nio") && OutboundQueue.overflowPolicy == OutboundQueue.OVERFLOW_POLICY.BLOCK) {
+            ChatLogger.error(
+                    () -> "The BLOCK overflow policy cannot be used in nio mode, use DISCONNECT or DROP_OLDEST");
+            return;
+        }
+
+        // Restore the chatrooms of the previous run
+        ChatServer.loadChatRooms();
+
+        // Publish the metrics over JMX and HTTP
+        ServerMetrics.start();
+
+        // Share the chatrooms with the other nodes of the cluster
+        ClusterNode.start();
+
+        if (mode.equals("nio")) {
+            ChatServer.runEventLoops();
+        } else if (mode.equals("virtual")) {
+            // A write blocked on a slow client then only holds a virtual thread
+            Handler.outboundWriters = ChatServer.newVirtualThreadExecutor(
+                    () -> Executors.newFixedThreadPool(ChatServer.outboundWriterThreads));
+            ChatServer.runThreadPerConnection(ChatServer.newVirtualThreadExecutor(Executors::newCachedThreadPool));
+        } else {
+            ChatServer.runThreadPerConnection(Executors.newFixedThreadPool(500));
+        }
+
+    }
+
+    /**
+     * Serve every client on its own thread from the given executor
+     */
+    private static void runThreadPerConnection(ExecutorService pool) throws Exception {
+        ChatLogger.info(() -> "The chat server is running...");
+        try (var listener = new ServerSocket(ChatServer.port)) {
             while (true) {
                 pool.execute(new Handler(listener.accept()));
             }
         }
+    }
 
+    /**
+     * Create an executor that starts a virtual thread for each client. Virtual
+     * threads need Java 21, older runtimes fall back to a pool of platform threads.
+     *
+     * @param fallback creates the pool used without virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor(Supplier<ExecutorService> fallback) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            ChatLogger.warn(() -> "Virtual threads are not available, using platform threads instead.");
+            return fallback.get();
+        }
+    }
+
+    /**
+     * Serve all clients from one selector-based event loop per processor
+     */
+    private static void runEventLoops() throws Exception {
+        int loopCount = Runtime.getRuntime().availableProcessors();
+        ServerEventLoop[] eventLoops = new ServerEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            eventLoops[i] = new ServerEventLoop("event-loop-" + i);
+            eventLoops[i].start();
+        }
+
+        ChatLogger.info(() -> "The chat server is running with " + loopCount + " event loops...");
+        try (var listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(ChatServer.port));
+            int next = 0;
+            while (true) {
+                // Spread the connections over the event loops
+                eventLoops[next].register(listener.accept());
+                next = (next + 1) % loopCount;
+            }
+        }
     }
 
 }
@@ -20,6 +20,14 @@ public class ClientClosedState implements ClientState {
     public void handleDataFrame(DataFrame frame) {
         if (frame.getType() == Global.FRAME_TYPE.OPEN.getValue()) {
 
+            // Use the version the server chose, a server that does not know the
+            // version asked for replies with its own
+            this.chatClient.setProtocolVersion(Math.max(1, Math.min(frame.getVersion(), ChatClient.protocolVersion)));
+
+            // Compress the frames from now on if the server agreed to it
+            this.chatClient.setCompressionEnabled(
+                    FrameCompressor.NAME.equals(Global.getField(frame.getExtendedData(), "compress")));
+
             // Change to open state
             this.chatClient.setCurrentState(this.chatClient.getOpenState());
 
@@ -16,7 +16,7 @@ public class ClientClosingState implements ClientState {
 
         // Received CLOSE response from server.
         if (frame.getType() == Global.FRAME_TYPE.CLOSE.getValue()) {
-            System.out.println("Received a CLOSE response from server. The program is closed.");
+            this.chatClient.display("Received a CLOSE response from server. The program is closed.");
         }
 
         this.chatClient.stopSendPingTask();
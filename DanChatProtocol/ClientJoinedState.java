@@ -11,6 +11,10 @@ public class ClientJoinedState implements ClientState {
         System.out.println("---------------Begin of Instructions--------------");
         System.out.println("You can start chatting now. After typing your message, press Enter to send.");
         System.out.println("To retrieve historical messages of this chatroom, enter $recovery");
+        System.out.println("To retrieve the next page of historical messages, enter $recovery next");
+        System.out.println(
+                "To search the messages of this chatroom, enter $search <words>. End a word with * to match words starting with it.");
+        System.out.println("To see more results of the last search, enter $search next");
         System.out.println("To leave the chatroom to create/join a different room, enter $leave");
         System.out.println("To close the client, enter $close");
         System.out.println("---------------End of Instructions--------------");
@@ -30,12 +34,29 @@ public class ClientJoinedState implements ClientState {
 
             this.chatClient.initClosing();
 
+        } else if (inputLowerCase.startsWith("$recovery next")) {
+
+            // Continue where the last page ended
+            this.chatClient.sendMessage(true, Global.FRAME_TYPE.RECOVERY, Global.ERROR_CODE.NONE, "",
+                    this.chatClient.addServerNode(Global.addField("", "from", this.chatClient.getRecoveryCursor())));
+
         } else if (inputLowerCase.startsWith("$recovery")) {
 
-            this.chatClient.sendMessage(true, Global.FRAME_TYPE.RECOVERY, Global.ERROR_CODE.NONE, "", "");
+            // Ask for the first page, so that the page ends with its cursor
+            this.chatClient.sendMessage(true, Global.FRAME_TYPE.RECOVERY, Global.ERROR_CODE.NONE, "",
+                    Global.addField("", "from", 0));
+
+        } else if (inputLowerCase.equals("$search next")) {
+
+            // Continue the last search where its results ended
+            this.chatClient.sendMessage(true, Global.FRAME_TYPE.SEARCH, Global.ERROR_CODE.NONE,
+                    this.chatClient.getLastSearch(),
+                    this.chatClient.addServerNode(Global.addField("", "from", this.chatClient.getSearchCursor())));
+
         } else if (inputLowerCase.startsWith("$search ")) {
 
-            this.chatClient.sendMessage(true, Global.FRAME_TYPE.SEARCH, Global.ERROR_CODE.NONE, input.substring(8), "");
+            this.chatClient.sendMessage(true, Global.FRAME_TYPE.SEARCH, Global.ERROR_CODE.NONE, input.substring(8),
+                    Global.addField("", "from", 0));
 
         } else {
 
@@ -44,8 +65,9 @@ public class ClientJoinedState implements ClientState {
             }
 
             String message = this.chatClient.getDisplayName() + ": " + input;
-            // Send the message to the server
-            this.chatClient.sendMessage(true, Global.FRAME_TYPE.TEXT, Global.ERROR_CODE.NONE, message, "");
+            // Send the message to the server, it waits if too many messages are not
+            // acknowledged yet
+            this.chatClient.sendText(message, "");
 
         }
 
@@ -64,12 +86,42 @@ public class ClientJoinedState implements ClientState {
 
         } else if (frame.getType() == Global.FRAME_TYPE.TEXT.getValue()) {
 
+            // A fragment of a large message, wait until the whole message is received
+            if (Global.getField(frame.getExtendedData(), "sid") != null) {
+                frame = this.chatClient.assembleFragment(frame);
+                if (frame == null) {
+                    return;
+                }
+            }
+
             // Receive a text message, display it
-            System.out.println(frame.getMainData());
+            this.chatClient.display(frame.getMainData());
+            if (this.chatClient.getTextListener() != null) {
+                this.chatClient.getTextListener().accept(frame);
+            }
+
+            // Remember the newest message of the room
+            long sequence = Global.getLongField(frame.getExtendedData(), "seq", -1);
+            if (sequence > this.chatClient.getLastSequence()) {
+                this.chatClient.setLastSequence(this.chatClient.getRoomName(), sequence);
+            }
 
-        } else if (frame.getType() == Global.FRAME_TYPE.ACK.getValue()) {
+        } else if (frame.getType() == Global.FRAME_TYPE.RECOVERY.getValue()) {
 
-            // An acknowledgement for the sent message, there is no action to be taken
+            // The end of a page of historical messages
+            this.chatClient.setRecoveryCursor(Global.getLongField(frame.getExtendedData(), "next", 0));
+            if (Global.getLongField(frame.getExtendedData(), "more", 0) == 1) {
+                this.chatClient.display("There are more messages, enter $recovery next to see them.");
+            }
+
+        } else if (frame.getType() == Global.FRAME_TYPE.SEARCH.getValue()) {
+
+            // The end of a page of search results
+            this.chatClient.setLastSearch(frame.getMainData());
+            this.chatClient.setSearchCursor(Global.getLongField(frame.getExtendedData(), "next", 0));
+            if (Global.getLongField(frame.getExtendedData(), "more", 0) == 1) {
+                this.chatClient.display("There are more results, enter $search next to see them.");
+            }
 
         } else if (frame.getType() == Global.FRAME_TYPE.PONG.getValue()) {
 
@@ -1,3 +1,5 @@
+import java.util.Objects;
+
 public class ClientOpenState implements ClientState {
 
     ChatClient chatClient;
@@ -42,7 +44,7 @@ public class ClientOpenState implements ClientState {
             // server
             if (Global.isAlphanumeric(roomName) && Global.isAlphanumeric(displayName)) {
                 this.chatClient.sendMessage(true, Global.FRAME_TYPE.NEW, Global.ERROR_CODE.NONE, input.substring(9),
-                        "");
+                        Global.addField("", "cid", this.chatClient.getClientId()));
             } else {
                 // Display the instructions again
                 this.chatClient.setDisplayInstructions(true);
@@ -71,7 +73,7 @@ public class ClientOpenState implements ClientState {
             // server
             if (Global.isAlphanumeric(roomName) && Global.isAlphanumeric(displayName)) {
                 this.chatClient.sendMessage(true, Global.FRAME_TYPE.JOIN, Global.ERROR_CODE.NONE, input.substring(10),
-                        "");
+                        Global.addField("", "cid", this.chatClient.getClientId()));
             } else {
                 this.chatClient.setDisplayInstructions(true);
             }
@@ -123,10 +125,34 @@ public class ClientOpenState implements ClientState {
             // Set the state to JOINED
             this.chatClient.setCurrentState(this.chatClient.getJoinedState());
 
+            // Rejoining the last room, fetch only the messages missed in between and
+            // send the messages the server may not have received
+            if (roomName.equals(this.chatClient.getLastRoomName())) {
+                if (this.chatClient.getLastSequence() >= 0) {
+                    this.chatClient.sendMessage(true, Global.FRAME_TYPE.RECOVERY, Global.ERROR_CODE.NONE, "",
+                            this.chatClient.addServerNode(
+                                    Global.addField("", "from", this.chatClient.getLastSequence() + 1)));
+                }
+                this.chatClient.resendUnacknowledged();
+            } else {
+                this.chatClient.setLastSequence(roomName, -1);
+                this.chatClient.discardUnacknowledged();
+            }
+
+            // The sequence numbers of another cluster node do not carry over. The
+            // recovery above then starts from the oldest message.
+            String node = Global.getField(frame.getExtendedData(), "node");
+            if (!Objects.equals(node, this.chatClient.getServerNode())) {
+                this.chatClient.setLastSequence(roomName, -1);
+                this.chatClient.setRecoveryCursor(0);
+                this.chatClient.setSearchCursor(0);
+                this.chatClient.setServerNode(node);
+            }
+
         } else if (frame.getType() == Global.FRAME_TYPE.ROOMLIST.getValue()) {
 
             // Print out all the room name
-            System.out.println(frame.getMainData());
+            this.chatClient.display(frame.getMainData());
 
         } else if (frame.getType() == Global.FRAME_TYPE.PONG.getValue()) {
 
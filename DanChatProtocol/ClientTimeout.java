@@ -1,17 +1,29 @@
-import java.util.TimerTask;
-
-public class ClientTimeout extends TimerTask {
+public class ClientTimeout implements Runnable {
     private ChatServer.Handler clientHandler;
 
     public ClientTimeout(ChatServer.Handler clientHandler) {
         this.clientHandler = clientHandler;
     }
 
+    /**
+     * Close the connection on the thread that serves it. The event loop of a
+     * non-blocking connection owns its state, so the close is handed to it.
+     */
     @Override
     public void run() {
-        System.out.println("Client timeout. Closing the socket...");
+        ChannelConnection connection = this.clientHandler.getConnection();
+        if (connection != null) {
+            connection.getEventLoop().execute(this::expire);
+        } else {
+            this.expire();
+        }
+    }
+
+    private void expire() {
+        ChatLogger.info(() -> "Client timeout. Closing the socket...");
+        ServerMetrics.recordTimeoutEviction();
         this.clientHandler.stopClientTimeoutTask();
         this.clientHandler.closeSocket();
     }
 
-}
\ No newline at end of file
+}
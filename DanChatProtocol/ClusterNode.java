@@ -0,0 +1,432 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the chatrooms of several server processes. Every node connects to
+ * each of its peers and sends them the rooms created, the participants that
+ * join and leave, and the messages recorded on this node, as data frames with
+ * the same codec the clients use. A node applies what its peers send to its
+ * own rooms, so every node has all the rooms, knows the display names taken on
+ * the other nodes, and records the messages of the cluster it receives.
+ *
+ * Each node numbers the messages in the order it records them, so the sequence
+ * numbers and the RECOVERY and SEARCH cursors of one node mean nothing on
+ * another. The server names its node when a client joins, and a request with a
+ * cursor from another node starts from the oldest message instead.
+ *
+ * The nodes are fully meshed: each node lists all the others in
+ * chat.cluster.peers, and never passes on what it received from a peer. A link
+ * that connects, or reconnects, starts with the rooms and participants of the
+ * node, so nodes can be started in any order. Messages sent while a peer was
+ * down are not replayed to it.
+ *
+ * The cluster port only listens on the loopback interface unless
+ * chat.cluster.address is set, and a peer has to open with chat.cluster.secret.
+ */
+public class ClusterNode {
+
+    // Port the peers connect to, 0 if the server is not part of a cluster
+    public static final int port = Integer.getInteger("chat.cluster.port", 0);
+
+    // Address the cluster port is bound to, the loopback interface if not set.
+    // Nodes on other machines need the address of an interface only the cluster
+    // can reach.
+    public static final String address = System.getProperty("chat.cluster.address");
+
+    // Shared by the nodes of the cluster and required to connect to one. It is
+    // not the secret the clients know, so that a client cannot pose as a node.
+    public static final String secret = System.getProperty("chat.cluster.secret");
+
+    // The other nodes as host:port of their cluster port, separated by commas
+    public static final String peers = System.getProperty("chat.cluster.peers", "");
+
+    // The name of this node, unique in the cluster
+    public static final String nodeId = System.getProperty("chat.cluster.nodeId", "node" + ChatServer.port);
+
+    // Events waiting to be sent to one peer. A peer that falls further behind is
+    // reconnected and brought up to date with the rooms and participants.
+    public static final int queueSize = Integer.getInteger("chat.cluster.queueSize", 65536);
+
+    // Milliseconds between attempts to connect to a peer, and without events
+    // before a link sends a PING to find out whether the peer is still there
+    private static final long RETRY_INTERVAL = 1000;
+
+    /**
+     * The link to one peer. Its thread connects to the peer and sends it the
+     * queued events.
+     */
+    private static class Peer implements Runnable {
+
+        private String host;
+        private int port;
+
+        private ArrayBlockingQueue<DataFrame> events = new ArrayBlockingQueue<>(ClusterNode.queueSize);
+
+        // Set when an event could not be queued, the link then starts over
+        private volatile boolean behind;
+
+        private Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        private void publish(DataFrame event) {
+            if (!this.events.offer(event)) {
+                this.behind = true;
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean connected = false;
+            while (true) {
+                try (Socket socket = new Socket(this.host, this.port)) {
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(socket.getOutputStream(), OutboundQueue.batchSize));
+
+                    // The events queued so far are covered by the state sent first
+                    this.events.clear();
+                    this.behind = false;
+                    ClusterNode.write(out, new DataFrame(true, false, false, false, 1,
+                            Global.FRAME_TYPE.OPEN.getValue(), Global.ERROR_CODE.NONE.getValue(), ClusterNode.secret,
+                            Global.addField("", "node", ClusterNode.nodeId)));
+                    for (DataFrame event : ClusterNode.getState()) {
+                        ClusterNode.write(out, event);
+                    }
+                    out.flush();
+                    connected = true;
+                    ChatLogger.info(() -> "Connected to cluster peer " + this.host + ":" + this.port);
+
+                    while (!this.behind) {
+                        DataFrame event = this.events.poll(RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+                        if (event == null) {
+                            event = new DataFrame(true, false, false, false, 1, Global.FRAME_TYPE.PING.getValue(),
+                                    Global.ERROR_CODE.NONE.getValue(), "", "");
+                        }
+                        // Send the events that are already waiting in the same write
+                        do {
+                            ClusterNode.write(out, event);
+                        } while ((event = this.events.poll()) != null);
+                        out.flush();
+                    }
+                    ChatLogger.warn(() -> "Cluster peer " + this.host + ":" + this.port + " fell behind, reconnecting");
+                } catch (IOException e) {
+                    if (connected) {
+                        ChatLogger.warn(() -> "Lost cluster peer " + this.host + ":" + this.port + ". " + e);
+                    }
+                    connected = false;
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                try {
+                    Thread.sleep(RETRY_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static ArrayList<Peer> links = new ArrayList<>();
+
+    // The inbound connection of each peer node, a newer one replaces the older
+    private static ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+
+    public static boolean isEnabled() {
+        return ClusterNode.port > 0;
+    }
+
+    /**
+     * Whether the sequence numbers of a request were given out by this node. A
+     * request that does not name a node comes from a client of a single server.
+     *
+     * @param request the extended data of the request
+     * @return
+     */
+    public static boolean isLocalCursor(String request) {
+        String node = Global.getField(request, "node");
+        return node == null || node.equals(ClusterNode.nodeId);
+    }
+
+    /**
+     * Accept the peers' connections and connect to the peers, if a cluster port
+     * is set
+     */
+    public static void start() {
+        if (!ClusterNode.isEnabled()) {
+            return;
+        }
+        if (ClusterNode.secret == null || ClusterNode.secret.isEmpty()) {
+            ChatLogger.error(() -> "chat.cluster.secret is not set, the server runs without the cluster");
+            return;
+        }
+        for (String peerAddress : ClusterNode.peers.split(",")) {
+            peerAddress = peerAddress.trim();
+            int colonIndex = peerAddress.lastIndexOf(":");
+            if (colonIndex <= 0) {
+                continue;
+            }
+            Peer peer = new Peer(peerAddress.substring(0, colonIndex),
+                    Integer.parseInt(peerAddress.substring(colonIndex + 1)));
+            ClusterNode.links.add(peer);
+            Thread thread = new Thread(peer, "cluster-link-" + peerAddress);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Thread acceptor = new Thread(ClusterNode::acceptPeers, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        ChatLogger.info(() -> "Cluster node " + ClusterNode.nodeId + " is listening on port " + ClusterNode.port
+                + " with " + ClusterNode.links.size() + " peers");
+    }
+
+    /**
+     * Tell the peers a room was created on this node
+     *
+     * @param roomName
+     */
+    public static void publishRoom(String roomName) {
+        ClusterNode.publish(Global.FRAME_TYPE.NEW, roomName, "");
+    }
+
+    public static void publishJoin(String roomName, String displayName) {
+        ClusterNode.publish(Global.FRAME_TYPE.JOIN, roomName + ";" + displayName, "");
+    }
+
+    public static void publishLeave(String roomName, String displayName) {
+        ClusterNode.publish(Global.FRAME_TYPE.LEAVE, roomName + ";" + displayName, "");
+    }
+
+    /**
+     * Tell the peers a message was recorded in a room
+     *
+     * @param roomName
+     * @param message   the whole message
+     * @param timestamp the sender's timestamp, null if it sent none
+     */
+    public static void publishText(String roomName, byte[] message, String timestamp) {
+        String extendedData = Global.addField("", "room", roomName);
+        if (timestamp != null) {
+            extendedData = Global.addField(extendedData, "ts", timestamp);
+        }
+        ClusterNode.publish(Global.FRAME_TYPE.TEXT, message, extendedData);
+    }
+
+    /**
+     * Tell the peers to pass a notice on to a room's participants without
+     * recording it
+     *
+     * @param roomName
+     * @param notice
+     */
+    public static void publishNotice(String roomName, String notice) {
+        ClusterNode.publish(Global.FRAME_TYPE.TEXT, notice.getBytes(StandardCharsets.UTF_8),
+                Global.addField(Global.addField("", "room", roomName), "notice", 1));
+    }
+
+    private static void publish(Global.FRAME_TYPE type, String mainData, String extendedData) {
+        ClusterNode.publish(type, mainData.getBytes(StandardCharsets.UTF_8), extendedData);
+    }
+
+    private static void publish(Global.FRAME_TYPE type, byte[] mainData, String extendedData) {
+        if (ClusterNode.links.isEmpty()) {
+            return;
+        }
+        // The peers share the frame, it is only read
+        DataFrame event = new DataFrame(true, false, false, false, 1, type.getValue(),
+                Global.ERROR_CODE.NONE.getValue(), mainData, extendedData.getBytes(StandardCharsets.UTF_8));
+        for (Peer peer : ClusterNode.links) {
+            peer.publish(event);
+        }
+    }
+
+    /**
+     * The rooms of this node and the participants connected to it, as the events
+     * that would have created them
+     */
+    private static ArrayList<DataFrame> getState() {
+        ArrayList<DataFrame> events = new ArrayList<>();
+        for (Map.Entry<String, ChatRoomData> room : ChatServer.getChatrooms().entrySet()) {
+            events.add(new DataFrame(true, false, false, false, 1, Global.FRAME_TYPE.NEW.getValue(),
+                    Global.ERROR_CODE.NONE.getValue(), room.getKey(), ""));
+            for (String displayName : room.getValue().getParticipants().keySet()) {
+                events.add(new DataFrame(true, false, false, false, 1, Global.FRAME_TYPE.JOIN.getValue(),
+                        Global.ERROR_CODE.NONE.getValue(), room.getKey() + ";" + displayName, ""));
+            }
+        }
+        return events;
+    }
+
+    private static void write(DataOutputStream out, DataFrame frame) throws IOException {
+        ByteBuffer buffer = Global.encodeFrame(frame);
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    private static void acceptPeers() {
+        try (ServerSocket listener = new ServerSocket(ClusterNode.port, 50,
+                ClusterNode.address != null ? InetAddress.getByName(ClusterNode.address)
+                        : InetAddress.getLoopbackAddress())) {
+            while (true) {
+                Socket socket = listener.accept();
+                Thread thread = new Thread(() -> ClusterNode.receive(socket), "cluster-peer");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            ChatLogger.error(() -> "The cluster port cannot be opened. " + e);
+        }
+    }
+
+    /**
+     * Apply the events a peer sends until it disconnects
+     *
+     * @param socket
+     */
+    private static void receive(Socket socket) {
+        String node = null;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                int length = in.readInt();
+                if (!BufferPool.isValidFrameLength(length)) {
+                    return;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                DataFrame frame = new DataFrame();
+                if (!frame.parseFromByteArray(bytes)) {
+                    return;
+                }
+
+                if (node == null) {
+                    // A peer opens with the cluster's secret and its name
+                    node = Global.getField(frame.getExtendedData(), "node");
+                    if (frame.getType() != Global.FRAME_TYPE.OPEN.getValue() || node == null
+                            || !MessageDigest.isEqual(ClusterNode.secret.getBytes(StandardCharsets.UTF_8),
+                                    frame.getMainDataBytes())) {
+                        ChatLogger.warn(() -> "Refused a cluster connection from " + socket.getRemoteSocketAddress());
+                        return;
+                    }
+                    // The state the peer sends next replaces what an older connection sent
+                    Socket previous = ClusterNode.inbound.put(node, socket);
+                    if (previous != null) {
+                        previous.close();
+                    }
+                    ClusterNode.forgetNode(node);
+                    String peerNode = node;
+                    ChatLogger.info(() -> "Cluster peer " + peerNode + " connected");
+                    continue;
+                }
+                ClusterNode.apply(node, frame);
+            }
+        } catch (EOFException e) {
+            // The peer closed the connection
+        } catch (IOException e) {
+            String peerNode = node;
+            ChatLogger.warn(() -> "Lost cluster peer " + peerNode + ". " + e);
+        } finally {
+            // The participants of a node that is gone are no longer in the rooms
+            if (node != null && ClusterNode.inbound.remove(node, socket)) {
+                ClusterNode.forgetNode(node);
+            }
+        }
+    }
+
+    private static void forgetNode(String node) {
+        for (ChatRoomData roomData : ChatServer.getChatrooms().values()) {
+            roomData.removeRemoteParticipants(node);
+        }
+    }
+
+    /**
+     * Apply an event from a peer to the rooms of this node
+     *
+     * @param node  the peer
+     * @param frame
+     */
+    private static void apply(String node, DataFrame frame) {
+        int type = frame.getType();
+        if (type == Global.FRAME_TYPE.NEW.getValue()) {
+
+            ChatServer.getChatrooms().computeIfAbsent(frame.getMainData(), ChatRoomData::new);
+
+        } else if (type == Global.FRAME_TYPE.JOIN.getValue() || type == Global.FRAME_TYPE.LEAVE.getValue()) {
+
+            String mainData = frame.getMainData();
+            int semicolonIndex = mainData.indexOf(";");
+            if (semicolonIndex < 0) {
+                return;
+            }
+            String roomName = mainData.substring(0, semicolonIndex);
+            String displayName = mainData.substring(semicolonIndex + 1);
+            ChatRoomData roomData = ChatServer.getChatrooms().computeIfAbsent(roomName, ChatRoomData::new);
+            if (type == Global.FRAME_TYPE.JOIN.getValue()) {
+                roomData.addRemoteParticipant(displayName, node);
+            } else {
+                roomData.removeRemoteParticipant(displayName, node);
+            }
+
+        } else if (type == Global.FRAME_TYPE.TEXT.getValue()) {
+
+            String extendedData = frame.getExtendedData();
+            String roomName = Global.getField(extendedData, "room");
+            if (roomName == null) {
+                return;
+            }
+            ChatRoomData roomData = ChatServer.getChatrooms().computeIfAbsent(roomName, ChatRoomData::new);
+            byte[] message = frame.getMainDataBytes();
+
+            // Record the message in this node's history, with this node's numbering.
+            // The other nodes may number it differently.
+            String fields = "";
+            String timestamp = Global.getField(extendedData, "ts");
+            if (timestamp != null) {
+                fields = Global.addField(fields, "ts", timestamp);
+            }
+            // A message this node could not record is not passed on
+            boolean notice = Global.getLongField(extendedData, "notice", 0) == 1;
+            long sequence = notice ? -1 : roomData.addMessage(message);
+            if (!notice && sequence < 0) {
+                return;
+            }
+
+            // Pass it on to the participants of this node, in fragments if it is large
+            ArrayList<byte[]> fragments = MessageAssembler.split(message);
+            long streamId = fragments.size() > 1 ? ChatServer.Handler.newStreamId() : 0;
+            for (int i = 0; i < fragments.size(); i++) {
+                boolean end = i == fragments.size() - 1;
+                String fragmentFields = fields;
+                if (fragments.size() > 1) {
+                    fragmentFields = Global.addField(Global.addField(fragmentFields, "sid", streamId), "part", i);
+                }
+                if (end && sequence >= 0) {
+                    fragmentFields = Global.addField(fragmentFields, "seq", sequence);
+                }
+                ChatServer.broadcast(roomData, new DataFrame(end, false, false, false, 0,
+                        Global.FRAME_TYPE.TEXT.getValue(), Global.ERROR_CODE.NONE.getValue(), fragments.get(i),
+                        fragmentFields.getBytes(StandardCharsets.UTF_8)), null);
+            }
+
+        }
+        // PING only keeps the link alive
+    }
+
+}
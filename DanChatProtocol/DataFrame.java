@@ -1,8 +1,33 @@
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Arrays;
-
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A protocol frame. Version 1 frames spend a byte on each flag and an int on
+ * every other header field. From version 2 on the frames use a compact layout:
+ * one byte of flags, a byte each for the type and error code, and the data
+ * lengths as varints, so that a short frame has a header of 5 bytes. The flags
+ * byte always has its top bit set, while the first byte of a version 1 frame is
+ * 0 or 1, so a frame of either layout can be parsed without knowing the
+ * version in use. OPEN frames always use the version 1 layout, so that any
+ * server can read the version a client asks for.
+ */
 public class DataFrame {
+    // Size of the fixed part of a version 1 frame: end, rsv1-3, version, type,
+    // error code and the two data length fields
+    public static final int HEADER_LENGTH = 24;
+
+    // The first protocol version with the compact layout
+    public static final int COMPACT_VERSION = 2;
+
+    // Bits of the flags byte of the compact layout
+    private static final int COMPACT = 0x80;
+    private static final int END = 0x01;
+    private static final int RSV1 = 0x02;
+    private static final int RSV2 = 0x04;
+    private static final int RSV3 = 0x08;
+
+    private static final byte[] EMPTY = new byte[0];
+
     private boolean end;
     private boolean rsv1;
     private boolean rsv2;
@@ -12,9 +37,11 @@ public class DataFrame {
     private int type;
     private int errorCode;
 
-    private int mainDataLength;
+    // The data is kept as UTF-8 bytes and only decoded to a String when asked
+    // for, so frames that are relayed as-is are never decoded
+    private byte[] mainDataBytes = EMPTY;
     private String mainData;
-    private int extendedDataLength;
+    private byte[] extendedDataBytes = EMPTY;
     private String extendedData;
 
     public DataFrame() {
@@ -29,54 +56,71 @@ public class DataFrame {
         this.version = version;
         this.type = type;
         this.errorCode = errorCode;
-        if (mainData != null) {
-            this.mainDataLength = mainData.length();
-        }
-        this.mainData = mainData;
-        if (extendedData != null) {
-            this.extendedDataLength = extendedData.length();
-        }
-        this.extendedData = extendedData;
+        this.mainData = mainData != null ? mainData : "";
+        this.mainDataBytes = null;
+        this.extendedData = extendedData != null ? extendedData : "";
+        this.extendedDataBytes = null;
+    }
+
+    public DataFrame(boolean end, boolean rsv1, boolean rsv2, boolean rsv3, int version, int type, int errorCode,
+            byte[] mainData, byte[] extendedData) {
+        this.end = end;
+        this.rsv1 = rsv1;
+        this.rsv2 = rsv2;
+        this.rsv3 = rsv3;
+        this.version = version;
+        this.type = type;
+        this.errorCode = errorCode;
+        this.mainDataBytes = mainData != null ? mainData : EMPTY;
+        this.extendedDataBytes = extendedData != null ? extendedData : EMPTY;
     }
 
     public boolean parseFromByteArray(byte[] byteArray) {
+        return this.parseFromByteBuffer(ByteBuffer.wrap(byteArray));
+    }
+
+    /**
+     * Parse a frame from the buffer's position up to its limit. Only the main and
+     * extended data are copied out of the buffer.
+     *
+     * @param buffer
+     * @return
+     */
+    public boolean parseFromByteBuffer(ByteBuffer buffer) {
         try {
 
+            if ((buffer.get(buffer.position()) & COMPACT) != 0) {
+                return this.parseCompact(buffer);
+            }
+
             // The first byte is end
-            this.end = byteArray[0] == 1;
+            this.end = buffer.get() == 1;
 
             // The second byte is rsv1
-            this.rsv1 = byteArray[1] == 1;
+            this.rsv1 = buffer.get() == 1;
 
-            // The second byte is rsv2
-            this.rsv2 = byteArray[2] == 1;
+            // The third byte is rsv2
+            this.rsv2 = buffer.get() == 1;
 
-            // The second byte is rsv3
-            this.rsv3 = byteArray[3] == 1;
+            // The fourth byte is rsv3
+            this.rsv3 = buffer.get() == 1;
 
             // The next 4 bytes is version
-            this.version = ByteBuffer.wrap(Arrays.copyOfRange(byteArray, 4, 8)).getInt();
+            this.version = buffer.getInt();
 
             // The next 4 bytes is type
-            this.type = ByteBuffer.wrap(Arrays.copyOfRange(byteArray, 8, 12)).getInt();
+            this.type = buffer.getInt();
 
             // The next 4 bytes is error code
-            this.errorCode = ByteBuffer.wrap(Arrays.copyOfRange(byteArray, 12, 16)).getInt();
-
-            // The next 4 bytes is mainDataLength
-            this.mainDataLength = ByteBuffer.wrap(Arrays.copyOfRange(byteArray, 16, 20)).getInt();
-
-            // the next <mainDataLength> bytes is the main data
-            int toIndex = 20 + this.mainDataLength;
-            this.mainData = new String(Arrays.copyOfRange(byteArray, 20, toIndex));
+            this.errorCode = buffer.getInt();
 
-            // The next 4 bytes is extendedDataLength
-            this.extendedDataLength = ByteBuffer.wrap(Arrays.copyOfRange(byteArray, toIndex, toIndex + 4)).getInt();
+            // The next 4 bytes is mainDataLength, followed by the main data
+            this.mainDataBytes = DataFrame.readData(buffer);
+            this.mainData = null;
 
-            // The next <extendedDataLength> bytes is the extended data
-            int fromIndex = toIndex + 4;
-            this.extendedData = new String(
-                    Arrays.copyOfRange(byteArray, fromIndex, fromIndex + this.extendedDataLength));
+            // The next 4 bytes is extendedDataLength, followed by the extended data
+            this.extendedDataBytes = DataFrame.readData(buffer);
+            this.extendedData = null;
 
         } catch (Exception ex) {
             return false;
@@ -84,6 +128,72 @@ public class DataFrame {
         return true;
     }
 
+    private boolean parseCompact(ByteBuffer buffer) {
+        // The first byte holds the flags
+        int flags = buffer.get();
+        this.end = (flags & END) != 0;
+        this.rsv1 = (flags & RSV1) != 0;
+        this.rsv2 = (flags & RSV2) != 0;
+        this.rsv3 = (flags & RSV3) != 0;
+        this.version = COMPACT_VERSION;
+
+        // The next byte is the type, followed by a byte of error code
+        this.type = buffer.get() & 0xff;
+        this.errorCode = buffer.get() & 0xff;
+
+        // The main and extended data, each after its varint length
+        this.mainDataBytes = DataFrame.readData(buffer, DataFrame.readVarint(buffer));
+        this.mainData = null;
+        this.extendedDataBytes = DataFrame.readData(buffer, DataFrame.readVarint(buffer));
+        this.extendedData = null;
+        return true;
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Invalid varint");
+    }
+
+    private static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static byte[] readData(ByteBuffer buffer) {
+        return DataFrame.readData(buffer, buffer.getInt());
+    }
+
+    private static byte[] readData(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid data length: " + length);
+        }
+        if (length == 0) {
+            return EMPTY;
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+
     public boolean getEnd() {
         return this.end;
     }
@@ -113,102 +223,118 @@ public class DataFrame {
     }
 
     public int getMainDataLength() {
-        return this.mainDataLength;
+        return this.getMainDataBytes().length;
     }
 
     public String getMainData() {
+        if (this.mainData == null) {
+            this.mainData = new String(this.mainDataBytes, StandardCharsets.UTF_8);
+        }
         return this.mainData;
     }
 
+    public byte[] getMainDataBytes() {
+        if (this.mainDataBytes == null) {
+            this.mainDataBytes = this.mainData.getBytes(StandardCharsets.UTF_8);
+        }
+        return this.mainDataBytes;
+    }
+
     public int getExtendedDataLength() {
-        return this.extendedDataLength;
+        return this.getExtendedDataBytes().length;
     }
 
     public String getExtendedData() {
+        if (this.extendedData == null) {
+            this.extendedData = new String(this.extendedDataBytes, StandardCharsets.UTF_8);
+        }
         return this.extendedData;
     }
 
-    public byte[] getByteArray() {
-        byte[] end = { (byte) (this.end ? 1 : 0) };
-        byte[] rsv1 = { (byte) (this.rsv1 ? 1 : 0) };
-        byte[] rsv2 = { (byte) (this.rsv2 ? 1 : 0) };
-        byte[] rsv3 = { (byte) (this.rsv3 ? 1 : 0) };
-
-        ByteBuffer byteBuffer;
-
-        byteBuffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
-        byte[] version = byteBuffer.putInt(this.version).array();
-
-        byteBuffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
-        byte[] type = byteBuffer.putInt(this.type).array();
-
-        byteBuffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
-        byte[] errorCode = byteBuffer.putInt(this.errorCode).array();
-
-        byteBuffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
-        byte[] mainDataLength = byteBuffer.putInt(this.mainDataLength).array();
-
-        byte[] mainData = this.mainData.getBytes();
-
-        byteBuffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
-        byte[] extendedDataLength = byteBuffer.putInt(this.extendedDataLength).array();
-
-        byte[] extendedData = this.extendedData.getBytes();
-
-        int length = end.length + rsv1.length + rsv2.length + rsv3.length + version.length + type.length
-                + errorCode.length + mainDataLength.length + mainData.length + extendedDataLength.length
-                + extendedData.length;
-
-        byte[] result = new byte[length];
-        result[0] = end[0];
-        result[1] = rsv1[0];
-        result[2] = rsv2[0];
-        result[3] = rsv3[0];
-        int count = 4;
-
-        // Copy the bytes from version
-        for (int i = 0; i < version.length; i++) {
-            result[count] = version[i];
-            count++;
-        }
-
-        // Copy the bytes from type
-        for (int i = 0; i < type.length; i++) {
-            result[count] = type[i];
-            count++;
+    public byte[] getExtendedDataBytes() {
+        if (this.extendedDataBytes == null) {
+            this.extendedDataBytes = this.extendedData.getBytes(StandardCharsets.UTF_8);
         }
+        return this.extendedDataBytes;
+    }
 
-        // Copy the bytes from error code
-        for (int i = 0; i < errorCode.length; i++) {
-            result[count] = errorCode[i];
-            count++;
+    /**
+     * The number of bytes written by writeTo
+     *
+     * @return
+     */
+    public int getEncodedLength() {
+        int mainDataLength = this.getMainDataBytes().length;
+        int extendedDataLength = this.getExtendedDataBytes().length;
+        if (this.isCompact()) {
+            return 3 + DataFrame.varintLength(mainDataLength) + mainDataLength
+                    + DataFrame.varintLength(extendedDataLength) + extendedDataLength;
         }
+        return DataFrame.HEADER_LENGTH + mainDataLength + extendedDataLength;
+    }
 
-        // Copy the bytes from main data length
-        for (int i = 0; i < mainDataLength.length; i++) {
-            result[count] = mainDataLength[i];
-            count++;
-        }
+    /**
+     * Whether the frame is written in the compact layout
+     *
+     * @return
+     */
+    public boolean isCompact() {
+        return this.version >= COMPACT_VERSION && this.type != Global.FRAME_TYPE.OPEN.getValue();
+    }
 
-        // Copy the bytes from main data
-        for (int i = 0; i < mainData.length; i++) {
-            result[count] = mainData[i];
-            count++;
+    /**
+     * The same frame for another protocol version
+     *
+     * @param version
+     * @return the frame itself if it already has the version
+     */
+    public DataFrame withVersion(int version) {
+        if (this.version == version) {
+            return this;
         }
+        return new DataFrame(this.end, this.rsv1, this.rsv2, this.rsv3, version, this.type, this.errorCode,
+                this.getMainDataBytes(), this.getExtendedDataBytes());
+    }
 
-        // Copy the bytes from extended data length
-        for (int i = 0; i < extendedDataLength.length; i++) {
-            result[count] = extendedDataLength[i];
-            count++;
+    /**
+     * Write the frame at the buffer's position. The buffer must have at least
+     * getEncodedLength() bytes remaining.
+     *
+     * @param buffer
+     */
+    public void writeTo(ByteBuffer buffer) {
+        byte[] mainData = this.getMainDataBytes();
+        byte[] extendedData = this.getExtendedDataBytes();
+
+        if (this.isCompact()) {
+            buffer.put((byte) (COMPACT | (this.end ? END : 0) | (this.rsv1 ? RSV1 : 0) | (this.rsv2 ? RSV2 : 0)
+                    | (this.rsv3 ? RSV3 : 0)));
+            buffer.put((byte) this.type);
+            buffer.put((byte) this.errorCode);
+            DataFrame.writeVarint(buffer, mainData.length);
+            buffer.put(mainData);
+            DataFrame.writeVarint(buffer, extendedData.length);
+            buffer.put(extendedData);
+            return;
         }
 
-        // Copy the bytes from extended data
-        for (int i = 0; i < extendedData.length; i++) {
-            result[count] = extendedData[i];
-            count++;
-        }
+        buffer.put((byte) (this.end ? 1 : 0));
+        buffer.put((byte) (this.rsv1 ? 1 : 0));
+        buffer.put((byte) (this.rsv2 ? 1 : 0));
+        buffer.put((byte) (this.rsv3 ? 1 : 0));
+        buffer.putInt(this.version);
+        buffer.putInt(this.type);
+        buffer.putInt(this.errorCode);
+        buffer.putInt(mainData.length);
+        buffer.put(mainData);
+        buffer.putInt(extendedData.length);
+        buffer.put(extendedData);
+    }
 
+    public byte[] getByteArray() {
+        byte[] result = new byte[this.getEncodedLength()];
+        this.writeTo(ByteBuffer.wrap(result));
         return result;
     }
 
-}
\ No newline at end of file
+}
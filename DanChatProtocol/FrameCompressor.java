@@ -0,0 +1,170 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the main data of frames with DEFLATE. Compression is offered by
+ * the client with compress=deflate in the extended data of its OPEN frame, and
+ * used in both directions if the server's OPEN reply carries the same field. A
+ * compressed frame has rsv1 set.
+ *
+ * Every frame is compressed on its own, so a broadcast is compressed once for
+ * the whole room and a frame dropped from a client's queue does not break the
+ * ones after it. Short messages still compress because both sides start from
+ * the same preset dictionary of words common in chat messages.
+ */
+public class FrameCompressor {
+
+    // Whether compression is offered by clients and accepted by the server
+    public static final boolean enabled = !"false".equals(System.getProperty("chat.compression"));
+
+    // Main data shorter than this many bytes is sent uncompressed
+    public static final int threshold = Integer.getInteger("chat.compression.threshold", 128);
+
+    // The most idle deflaters, and inflaters, kept for reuse
+    public static final int poolSize = Integer.getInteger("chat.compression.poolSize",
+            2 * Runtime.getRuntime().availableProcessors());
+
+    // The name of the compression in the OPEN frames
+    public static final String NAME = "deflate";
+
+    // DEFLATE finds matches in the dictionary like in earlier data, the most
+    // common strings are placed last where the distances are shortest
+    private static final byte[] DICTIONARY = ("because about would could should there their where which think "
+            + "people really something anything nothing everyone tomorrow yesterday tonight morning "
+            + "thanks thank you please sorry okay sure maybe never always right now today what when "
+            + "with have this that just know like good time will from your they been were here then "
+            + "http://https://www. left the room. joined the room. : the and to of a in is it for on ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    // Deflaters and inflaters hold native memory. A few are reused by all the
+    // threads, the ones returned to a full pool are ended rather than left to the
+    // garbage collector, since a server with virtual threads has too many
+    // threads for each to keep its own.
+    private static final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(
+            Math.max(1, FrameCompressor.poolSize));
+    private static final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(
+            Math.max(1, FrameCompressor.poolSize));
+
+    /**
+     * Compress the main data of a frame
+     *
+     * @param frame
+     * @return a new frame with rsv1 set, or the frame itself if its main data is
+     *         below the threshold or does not get shorter
+     */
+    public static DataFrame compress(DataFrame frame) {
+        byte[] data = frame.getMainDataBytes();
+        if (frame.getRsv1() || data.length < FrameCompressor.threshold) {
+            return frame;
+        }
+        byte[] compressed = FrameCompressor.deflate(data);
+        if (compressed == null) {
+            return frame;
+        }
+        return new DataFrame(frame.getEnd(), true, frame.getRsv2(), frame.getRsv3(), frame.getVersion(),
+                frame.getType(), frame.getErrorCode(), compressed, frame.getExtendedDataBytes());
+    }
+
+    /**
+     * Decompress the main data of a frame that has rsv1 set
+     *
+     * @param frame
+     * @return a new frame with rsv1 cleared, the frame itself if it is not
+     *         compressed, or null if the data is not valid or larger than
+     *         MessageAssembler.maxMessageSize
+     */
+    public static DataFrame decompress(DataFrame frame) {
+        if (!frame.getRsv1()) {
+            return frame;
+        }
+        byte[] data = FrameCompressor.inflate(frame.getMainDataBytes(), MessageAssembler.maxMessageSize);
+        if (data == null) {
+            return null;
+        }
+        return new DataFrame(frame.getEnd(), false, frame.getRsv2(), frame.getRsv3(), frame.getVersion(),
+                frame.getType(), frame.getErrorCode(), data, frame.getExtendedDataBytes());
+    }
+
+    /**
+     * Compress data with the preset dictionary
+     *
+     * @param data
+     * @return the compressed data, or null if it is not shorter than the data
+     */
+    public static byte[] deflate(byte[] data) {
+        Deflater deflater = FrameCompressor.deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data);
+            deflater.finish();
+
+            // Stop as soon as the output is as long as the input
+            byte[] output = new byte[data.length];
+            int length = 0;
+            while (!deflater.finished() && length < data.length) {
+                length += deflater.deflate(output, length, data.length - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.reset();
+            if (!FrameCompressor.deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Decompress data compressed with the preset dictionary
+     *
+     * @param data
+     * @param maxLength
+     * @return the data, or null if it is not valid or longer than maxLength
+     */
+    public static byte[] inflate(byte[] data, int maxLength) {
+        Inflater inflater = FrameCompressor.inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(data);
+
+            // The output grows as needed, up to maxLength
+            byte[] output = new byte[(int) Math.max(1, Math.min((long) data.length * 4, maxLength))];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == output.length) {
+                    if (length >= maxLength) {
+                        return null;
+                    }
+                    output = Arrays.copyOf(output, (int) Math.min((long) length * 2, maxLength));
+                }
+                int inflated = inflater.inflate(output, length, output.length - length);
+                // Truncated data
+                if (inflated == 0 && inflater.needsInput()) {
+                    return null;
+                }
+                length += inflated;
+            }
+            return Arrays.copyOf(output, length);
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.reset();
+            if (!FrameCompressor.inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+}
@@ -1,4 +1,6 @@
 import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
 
 public class Global {
     public enum FRAME_TYPE {
@@ -32,6 +34,16 @@ public class Global {
     }
 
     public static void displayErrorMessage(ERROR_CODE errorCode) {
+        System.out.println(Global.getErrorMessage(errorCode));
+    }
+
+    /**
+     * The description of an error code
+     *
+     * @param errorCode
+     * @return
+     */
+    public static String getErrorMessage(ERROR_CODE errorCode) {
         String errorMessage = "";
         switch (errorCode) {
         case VERSION_NOT_SUPPORTED:
@@ -53,28 +65,139 @@ public class Global {
             errorMessage = "The recevied frame cannot be interpreted.";
             break;
         }
-        System.out.println(errorMessage);
+        return errorMessage;
+    }
+
+    // Each sending thread encodes its frames into its own reusable buffer
+    private static final ThreadLocal<ByteBuffer> encodeBuffer = ThreadLocal
+            .withInitial(() -> ByteBuffer.allocate(256));
+
+    public static void sendMessage(DataOutputStream out, Lock lock, boolean end, int version,
+            Global.FRAME_TYPE type, Global.ERROR_CODE errorCode, String mainData, String extendedData) {
+        Global.sendFrame(out, lock, new DataFrame(end, false, false, false, version, type.getValue(),
+                errorCode.getValue(), mainData, extendedData));
+    }
+
+    public static void sendFrame(DataOutputStream out, Lock lock, DataFrame frame) {
+        Global.writeFrame(out, lock, frame, true);
     }
 
-    public static void sendMessage(DataOutputStream out, boolean end, int version, Global.FRAME_TYPE type,
-            Global.ERROR_CODE errorCode, String mainData, String extendedData) {
+    /**
+     * Write a frame without flushing the stream, so that it is sent together with
+     * the frames written after it. The caller flushes the stream once the batch is
+     * complete.
+     *
+     * @param out
+     * @param lock  held by every thread writing to the stream
+     * @param frame
+     */
+    public static void writeFrame(DataOutputStream out, Lock lock, DataFrame frame) {
+        Global.writeFrame(out, lock, frame, false);
+    }
+
+    private static void writeFrame(DataOutputStream out, Lock lock, DataFrame frame, boolean flush) {
         try {
-            // Create a byte array from the provided data
-            byte[] message = new DataFrame(end, false, false, false, version, type.getValue(), errorCode.getValue(),
-                    mainData, extendedData).getByteArray();
-            // Send the array length
-            out.writeInt(message.length);
-            // Send the array
-            out.write(message, 0, message.length);
-            // Flush the stream
-            out.flush();
+            // Encode the length and the frame into the thread's buffer
+            ByteBuffer buffer = Global.encodeFrame(frame);
+            // Several threads may send to the same client, keep each frame whole. A
+            // lock rather than a monitor lets a virtual thread that waits on a slow
+            // client give up its carrier thread.
+            lock.lock();
+            try {
+                // Send the length and the frame in one write
+                out.write(buffer.array(), 0, buffer.position());
+                if (flush) {
+                    out.flush();
+                }
+            } finally {
+                lock.unlock();
+            }
         } catch (Exception e) {
-            System.out.println(e);
+            ChatLogger.warn(() -> e.toString());
+        }
+    }
+
+    /**
+     * Encode a length-prefixed frame into the calling thread's buffer. The
+     * returned buffer is only valid until the thread encodes its next frame.
+     *
+     * @param frame
+     * @return
+     */
+    public static ByteBuffer encodeFrame(DataFrame frame) {
+        int length = frame.getEncodedLength();
+        ByteBuffer buffer = Global.encodeBuffer.get();
+        if (buffer.capacity() < 4 + length) {
+            buffer = ByteBuffer.allocate(Math.max(4 + length, buffer.capacity() * 2));
+            Global.encodeBuffer.set(buffer);
+        }
+        buffer.clear();
+        buffer.putInt(length);
+        frame.writeTo(buffer);
+        return buffer;
+    }
+
+    /**
+     * Encode a length-prefixed frame into a new array that can be shared between
+     * several receivers
+     *
+     * @param frame
+     * @return
+     */
+    public static byte[] encodeFrameBytes(DataFrame frame) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + frame.getEncodedLength());
+        buffer.putInt(frame.getEncodedLength());
+        frame.writeTo(buffer);
+        return buffer.array();
+    }
+
+    public static void sendErrorFrame(DataOutputStream out, Lock lock, int version, Global.ERROR_CODE errorCode) {
+        Global.sendMessage(out, lock, true, version, Global.FRAME_TYPE.ERROR, errorCode, "", "");
+    }
+
+    /**
+     * Read a field from data in the form key=value;key=value
+     *
+     * @param data
+     * @param key
+     * @return the value, or null if the field is missing
+     */
+    public static String getField(String data, String key) {
+        if (data == null) {
+            return null;
+        }
+        for (String field : data.split(";")) {
+            int equalsIndex = field.indexOf("=");
+            if (equalsIndex > 0 && field.substring(0, equalsIndex).equals(key)) {
+                return field.substring(equalsIndex + 1);
+            }
+        }
+        return null;
+    }
+
+    public static long getLongField(String data, String key, long defaultValue) {
+        String value = Global.getField(data, key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
     }
 
-    public static void sendErrorFrame(DataOutputStream out, Global.ERROR_CODE errorCode) {
-        Global.sendMessage(out, true, ChatServer.serverVersion, Global.FRAME_TYPE.ERROR, errorCode, "", "");
+    /**
+     * Append a field to data in the form key=value;key=value
+     *
+     * @param data
+     * @param key
+     * @param value
+     * @return
+     */
+    public static String addField(String data, String key, Object value) {
+        String field = key + "=" + value;
+        return data == null || data.equals("") ? field : data + ";" + field;
     }
 
     public static boolean isAlphanumeric(String string) {
@@ -0,0 +1,199 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a chat server with many headless clients and reports the message
+ * throughput and the end-to-end delivery latency. The clients go through the
+ * same states as interactive ones: they open a connection, create or join a
+ * room and then send TEXT messages at a fixed rate. Every message carries the
+ * time it was sent in the ts field of its extended data, which the server
+ * passes on to the receivers.
+ *
+ * Usage: java [-Dchat.load.clients=100 ...] LoadGenerator [server address]
+ */
+public class LoadGenerator {
+
+    // The number of connections
+    public static final int clients = Integer.getInteger("chat.load.clients", 100);
+
+    // The clients are spread evenly over this many rooms
+    public static final int rooms = Integer.getInteger("chat.load.rooms", 10);
+
+    // Messages sent per second by each client
+    public static final double rate = Double.parseDouble(System.getProperty("chat.load.rate", "1"));
+
+    // Characters of text in each message
+    public static final int messageSize = Integer.getInteger("chat.load.messageSize", 100);
+
+    // Seconds of sending before and during the measurement
+    public static final int warmup = Integer.getInteger("chat.load.warmup", 5);
+    public static final int duration = Integer.getInteger("chat.load.duration", 30);
+
+    // How long the clients may take to open and join, in milliseconds
+    private static final long HANDSHAKE_TIMEOUT = 60000;
+
+    private static volatile boolean measuring = false;
+
+    private static LongAdder sentCount = new LongAdder();
+
+    private static LongAdder deliveredCount = new LongAdder();
+
+    // Sends skipped because the server had not acknowledged enough messages
+    private static LongAdder throttledCount = new LongAdder();
+
+    // Delivery latencies in microseconds
+    private static LatencyHistogram latencies = new LatencyHistogram();
+
+    public static void main(String[] args) throws Exception {
+        String serverAddress = args.length > 0 ? args[0] : "localhost";
+        int roomCount = Math.max(1, Math.min(LoadGenerator.rooms, LoadGenerator.clients));
+
+        // Each client has a thread blocked on reading from the server, the sends of
+        // all clients are scheduled on a few shared threads
+        ExecutorService receivers = Executors.newCachedThreadPool(LoadGenerator.daemonThreads("load-receiver"));
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+                Runtime.getRuntime().availableProcessors(), LoadGenerator.daemonThreads("load-sender"));
+
+        // Connect the clients
+        System.out.println("Connecting " + LoadGenerator.clients + " clients to " + serverAddress + "...");
+        ChatClient[] chatClients = new ChatClient[LoadGenerator.clients];
+        for (int i = 0; i < chatClients.length; i++) {
+            ChatClient client = new ChatClient(serverAddress);
+            client.setHeadless(true);
+            client.setTextListener(LoadGenerator::recordDelivery);
+            client.connect();
+            receivers.execute(client::receive);
+            client.sendOpenHandshake();
+            chatClients[i] = client;
+        }
+        LoadGenerator.awaitOpen(chatClients, 0, chatClients.length);
+
+        // The first client of every room creates it, the others join it
+        for (int i = 0; i < roomCount; i++) {
+            chatClients[i].getCurrentState().handleUserInput("$newroom load" + i + ";user" + i);
+        }
+        LoadGenerator.awaitJoined(chatClients, 0, roomCount);
+        for (int i = roomCount; i < chatClients.length; i++) {
+            chatClients[i].getCurrentState().handleUserInput("$joinroom load" + (i % roomCount) + ";user" + i);
+        }
+        LoadGenerator.awaitJoined(chatClients, roomCount, chatClients.length);
+        System.out.println("All clients joined " + roomCount + " rooms.");
+
+        // Every client sends at the same rate, starting at a random point of its period
+        // so that the sends are spread out
+        StringBuilder text = new StringBuilder();
+        while (text.length() < LoadGenerator.messageSize) {
+            text.append("load test ");
+        }
+        String message = text.substring(0, LoadGenerator.messageSize);
+        long period = (long) (1e9 / LoadGenerator.rate);
+        for (ChatClient client : chatClients) {
+            senders.scheduleAtFixedRate(() -> LoadGenerator.send(client, message),
+                    ThreadLocalRandom.current().nextLong(period), period, TimeUnit.NANOSECONDS);
+        }
+
+        System.out.println("Warming up for " + LoadGenerator.warmup + " s...");
+        Thread.sleep(LoadGenerator.warmup * 1000L);
+        LoadGenerator.measuring = true;
+        long start = System.nanoTime();
+        System.out.println("Measuring for " + LoadGenerator.duration + " s...");
+        Thread.sleep(LoadGenerator.duration * 1000L);
+        LoadGenerator.measuring = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        senders.shutdownNow();
+
+        LoadGenerator.printReport(seconds);
+
+        // Close the connections the way a user would
+        for (ChatClient client : chatClients) {
+            client.getCurrentState().handleUserInput("$close");
+        }
+        Thread.sleep(1000);
+        System.exit(0);
+    }
+
+    private static void send(ChatClient client, String message) {
+        if (!client.running) {
+            return;
+        }
+        // Back off while the send window is full instead of queueing up messages
+        if (client.isSendWindowFull()) {
+            if (LoadGenerator.measuring) {
+                LoadGenerator.throttledCount.increment();
+            }
+            return;
+        }
+        client.sendText(client.getDisplayName() + ": " + message, Global.addField("", "ts", System.nanoTime()));
+        if (LoadGenerator.measuring) {
+            LoadGenerator.sentCount.increment();
+        }
+    }
+
+    /**
+     * Called by the receiving clients for every TEXT frame. All the clients run in
+     * this process, so the sender's nanoTime can be compared with the receiver's.
+     */
+    private static void recordDelivery(DataFrame frame) {
+        long sent = Global.getLongField(frame.getExtendedData(), "ts", -1);
+        if (sent < 0 || !LoadGenerator.measuring) {
+            return;
+        }
+        LoadGenerator.deliveredCount.increment();
+        LoadGenerator.latencies.record((System.nanoTime() - sent) / 1000);
+    }
+
+    private static void printReport(double seconds) {
+        System.out.println("---------------Results--------------");
+        System.out.printf("Clients: %d in %d rooms, %.1f messages/s each%n", LoadGenerator.clients,
+                Math.min(LoadGenerator.rooms, LoadGenerator.clients), LoadGenerator.rate);
+        System.out.printf("Sent:      %d messages, %.0f messages/s%n", LoadGenerator.sentCount.sum(),
+                LoadGenerator.sentCount.sum() / seconds);
+        System.out.printf("Throttled: %d sends while the send window was full%n", LoadGenerator.throttledCount.sum());
+        System.out.printf("Delivered: %d messages, %.0f messages/s%n", LoadGenerator.deliveredCount.sum(),
+                LoadGenerator.deliveredCount.sum() / seconds);
+        System.out.printf("Latency (us): mean %.0f, p50 %d, p99 %d, p99.9 %d, max %d%n",
+                LoadGenerator.latencies.getMean(), LoadGenerator.latencies.getPercentile(50),
+                LoadGenerator.latencies.getPercentile(99), LoadGenerator.latencies.getPercentile(99.9),
+                LoadGenerator.latencies.getMax());
+    }
+
+    private static void awaitOpen(ChatClient[] chatClients, int from, int to) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+        for (int i = from; i < to; i++) {
+            while (chatClients[i].getCurrentState() != chatClients[i].getOpenState()) {
+                LoadGenerator.waitUntil(deadline, "Client " + i + " did not get an OPEN response.");
+            }
+        }
+    }
+
+    private static void awaitJoined(ChatClient[] chatClients, int from, int to) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+        for (int i = from; i < to; i++) {
+            while (chatClients[i].getCurrentState() != chatClients[i].getJoinedState()) {
+                LoadGenerator.waitUntil(deadline, "Client " + i + " could not join its room.");
+            }
+        }
+    }
+
+    private static void waitUntil(long deadline, String timeoutMessage) throws InterruptedException {
+        if (System.currentTimeMillis() > deadline) {
+            System.out.println(timeoutMessage);
+            System.exit(1);
+        }
+        Thread.sleep(10);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
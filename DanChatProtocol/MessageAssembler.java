@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Collects the fragments of a message that was split into several TEXT frames.
+ * Every fragment but the last has the end flag cleared. The buffer is kept for
+ * the next message, so a connection only allocates when a message is larger
+ * than the ones before it.
+ */
+public class MessageAssembler {
+
+    // Senders split messages into fragments of at most this many bytes
+    public static final int fragmentSize = Integer.getInteger("chat.fragmentSize", 16384);
+
+    // The largest message that is reassembled, in bytes
+    public static final int maxMessageSize = Integer.getInteger("chat.maxMessageSize", 4 * 1024 * 1024);
+
+    // A buffer that grew larger than this is released once its message is complete
+    private static final int RETAINED_SIZE = 4 * MessageAssembler.fragmentSize;
+
+    private byte[] buffer = new byte[0];
+
+    private int length;
+
+    // Number of fragments appended to the current message
+    private int parts;
+
+    /**
+     * Split a message into fragments for sending
+     *
+     * @param message
+     * @return the message itself if it fits into one fragment
+     */
+    public static ArrayList<byte[]> split(byte[] message) {
+        ArrayList<byte[]> fragments = new ArrayList<>();
+        if (message.length <= MessageAssembler.fragmentSize) {
+            fragments.add(message);
+            return fragments;
+        }
+        // The fragments may split a character, the receiver joins the bytes before
+        // decoding them
+        for (int start = 0; start < message.length; start += MessageAssembler.fragmentSize) {
+            fragments.add(Arrays.copyOfRange(message, start,
+                    Math.min(start + MessageAssembler.fragmentSize, message.length)));
+        }
+        return fragments;
+    }
+
+    /**
+     * Add the next fragment of the message
+     *
+     * @param fragment
+     * @return false if the message would be larger than maxMessageSize
+     */
+    public boolean append(byte[] fragment) {
+        if (this.length + fragment.length > MessageAssembler.maxMessageSize) {
+            return false;
+        }
+        if (this.length + fragment.length > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.length + fragment.length, this.buffer.length * 2));
+        }
+        System.arraycopy(fragment, 0, this.buffer, this.length, fragment.length);
+        this.length += fragment.length;
+        this.parts++;
+        return true;
+    }
+
+    /**
+     * Copy out the complete message and start a new one
+     *
+     * @return
+     */
+    public byte[] finish() {
+        byte[] message = Arrays.copyOf(this.buffer, this.length);
+        this.reset();
+        return message;
+    }
+
+    public void reset() {
+        this.length = 0;
+        this.parts = 0;
+        if (this.buffer.length > RETAINED_SIZE) {
+            this.buffer = new byte[0];
+        }
+    }
+
+    /**
+     * Whether no fragment of a message has been received yet
+     *
+     * @return
+     */
+    public boolean isEmpty() {
+        return this.parts == 0;
+    }
+
+    public int getParts() {
+        return this.parts;
+    }
+
+}
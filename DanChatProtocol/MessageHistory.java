@@ -0,0 +1,216 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The recent messages of a chatroom, kept in a bounded ring buffer. Only the
+ * UTF-8 text of each message is stored, with the time it was received and its
+ * sequence number. The oldest messages are discarded once the room exceeds the
+ * configured number of messages, number of bytes or age.
+ */
+public class MessageHistory {
+
+    // The maximum number of messages kept per room
+    public static final int maxMessages = Integer.getInteger("chat.history.maxMessages", 10000);
+
+    // The maximum number of text bytes kept per room
+    public static final long maxBytes = Long.getLong("chat.history.maxBytes", 16 * 1024 * 1024);
+
+    // The maximum age of a kept message in milliseconds, 0 keeps messages of any age
+    public static final long maxAge = Long.getLong("chat.history.maxAge", 0);
+
+    /**
+     * A message copied out of the history
+     */
+    public static class Entry {
+        private long sequence;
+        private long timestamp;
+        private byte[] data;
+
+        public Entry(long sequence, long timestamp, byte[] data) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.data = data;
+        }
+
+        public long getSequence() {
+            return this.sequence;
+        }
+
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+
+        public byte[] getData() {
+            return this.data;
+        }
+
+        public String getText() {
+            return new String(this.data, StandardCharsets.UTF_8);
+        }
+    }
+
+    // The ring buffer grows up to maxMessages slots as the room fills up
+    private byte[][] data = new byte[16][];
+    private long[] timestamps = new long[16];
+
+    // Index of the oldest message in the ring
+    private int head;
+
+    // Number of messages in the ring
+    private int count;
+
+    // Sequence number of the oldest message in the ring
+    private long firstSequence;
+
+    // Total text bytes in the ring
+    private long byteCount;
+
+    public MessageHistory() {
+    }
+
+    /**
+     * Create an empty history that continues the numbering of earlier messages
+     *
+     * @param nextSequence
+     */
+    public MessageHistory(long nextSequence) {
+        this.firstSequence = nextSequence;
+    }
+
+    /**
+     * Add a message and discard the messages that are past the retention limits
+     *
+     * @param message
+     * @param now
+     * @return the sequence number of the message
+     */
+    public synchronized long append(byte[] message, long now) {
+
+        // Make room for the new message
+        while (this.count > 0 && (this.count >= MessageHistory.maxMessages
+                || this.byteCount + message.length > MessageHistory.maxBytes)) {
+            this.removeOldest();
+        }
+        this.removeExpired(now);
+        if (this.count == this.data.length) {
+            this.grow();
+        }
+
+        int index = (this.head + this.count) % this.data.length;
+        this.data[index] = message;
+        this.timestamps[index] = now;
+        this.count++;
+        this.byteCount += message.length;
+
+        return this.firstSequence + this.count - 1;
+    }
+
+    /**
+     * Copy out all the messages that are still kept, oldest first
+     *
+     * @return
+     */
+    public synchronized Entry[] snapshot() {
+        this.removeExpired(System.currentTimeMillis());
+
+        Entry[] entries = new Entry[this.count];
+        for (int i = 0; i < this.count; i++) {
+            int index = (this.head + i) % this.data.length;
+            entries[i] = new Entry(this.firstSequence + i, this.timestamps[index], this.data[index]);
+        }
+        return entries;
+    }
+
+    /**
+     * Copy out up to limit messages starting at a sequence number. Starts at the
+     * oldest kept message if that one is newer.
+     *
+     * @param fromSequence
+     * @param limit
+     * @return
+     */
+    public synchronized Entry[] snapshot(long fromSequence, int limit) {
+        this.removeExpired(System.currentTimeMillis());
+
+        long start = Math.max(fromSequence - this.firstSequence, 0);
+        int length = (int) Math.max(Math.min(this.count - start, limit), 0);
+        Entry[] entries = new Entry[length];
+        for (int i = 0; i < length; i++) {
+            int index = (int) ((this.head + start + i) % this.data.length);
+            entries[i] = new Entry(this.firstSequence + start + i, this.timestamps[index], this.data[index]);
+        }
+        return entries;
+    }
+
+    /**
+     * Copy out one message
+     *
+     * @param sequence
+     * @return the message, or null if it is not kept
+     */
+    public synchronized Entry get(long sequence) {
+        long offset = sequence - this.firstSequence;
+        if (offset < 0 || offset >= this.count) {
+            return null;
+        }
+        int index = (int) ((this.head + offset) % this.data.length);
+        return new Entry(sequence, this.timestamps[index], this.data[index]);
+    }
+
+    public synchronized int size() {
+        return this.count;
+    }
+
+    public synchronized long getByteCount() {
+        return this.byteCount;
+    }
+
+    /**
+     * The sequence number of the oldest kept message
+     *
+     * @return
+     */
+    public synchronized long getFirstSequence() {
+        return this.firstSequence;
+    }
+
+    /**
+     * The sequence number the next message will get
+     *
+     * @return
+     */
+    public synchronized long getNextSequence() {
+        return this.firstSequence + this.count;
+    }
+
+    private void removeOldest() {
+        this.byteCount -= this.data[this.head].length;
+        this.data[this.head] = null;
+        this.head = (this.head + 1) % this.data.length;
+        this.count--;
+        this.firstSequence++;
+    }
+
+    private void removeExpired(long now) {
+        if (MessageHistory.maxAge <= 0) {
+            return;
+        }
+        while (this.count > 0 && now - this.timestamps[this.head] > MessageHistory.maxAge) {
+            this.removeOldest();
+        }
+    }
+
+    private void grow() {
+        int capacity = Math.min(this.data.length * 2, Math.max(MessageHistory.maxMessages, 1));
+        byte[][] data = new byte[capacity][];
+        long[] timestamps = new long[capacity];
+        for (int i = 0; i < this.count; i++) {
+            int index = (this.head + i) % this.data.length;
+            data[i] = this.data[index];
+            timestamps[i] = this.timestamps[index];
+        }
+        this.data = data;
+        this.timestamps = timestamps;
+        this.head = 0;
+    }
+
+}
@@ -0,0 +1,325 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only log of a chatroom's messages, stored on disk so the history
+ * survives a restart. The log is split into memory-mapped segment files. Each
+ * segment has an index file holding the end offset of every record, so a
+ * message is found by its sequence number without reading the messages before
+ * it. Appends only copy into the mapped memory, the files are synced by a
+ * background thread that commits the appends of all rooms together. Appends
+ * that were not synced may reach the disk in any order, so the records of the
+ * last segment are checked when the log is opened and the log is cut at the
+ * first one that was not completely written.
+ *
+ * Record layout: 4 bytes data length, 4 bytes CRC32C of the timestamp and the
+ * data, 8 bytes timestamp, the UTF-8 data.
+ */
+public class MessageLog {
+
+    // The directory holding one sub-directory per room, logging is off if not set
+    public static final String directory = System.getProperty("chat.log.dir");
+
+    // The size of a segment's data file in bytes
+    public static final int segmentSize = Integer.getInteger("chat.log.segmentSize", 64 * 1024 * 1024);
+
+    // The maximum number of messages in a segment
+    public static final int segmentMessages = Integer.getInteger("chat.log.segmentMessages", 65536);
+
+    // How often the appended messages are synced to disk in milliseconds
+    public static final long flushInterval = Long.getLong("chat.log.flushInterval", 100);
+
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    // Logs with appends that are not synced yet
+    private static Set<MessageLog> dirtyLogs = ConcurrentHashMap.newKeySet();
+
+    private static ScheduledExecutorService flusher;
+
+    /**
+     * A data file and its index file, both memory-mapped
+     */
+    private static class Segment {
+        private long baseSequence;
+        private MappedByteBuffer data;
+        private MappedByteBuffer index;
+
+        // Number of records in the segment
+        private int count;
+
+        // End of the last record
+        private int position;
+
+        private Segment(File folder, long baseSequence, int size) throws IOException {
+            this.baseSequence = baseSequence;
+            String name = String.format("%020d", baseSequence);
+
+            try (RandomAccessFile dataFile = new RandomAccessFile(new File(folder, name + ".log"), "rw");
+                    RandomAccessFile indexFile = new RandomAccessFile(new File(folder, name + ".idx"), "rw")) {
+                // An existing segment keeps its size
+                int dataSize = (int) Math.max(dataFile.length(), size);
+                this.data = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, dataSize);
+                this.index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        4L * MessageLog.segmentMessages);
+            }
+
+            // The index entries only increase and unused entries are zero, so the
+            // number of records is found with a binary search
+            int low = 0;
+            int high = MessageLog.segmentMessages;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (this.index.getInt(middle * 4) != 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            this.count = low;
+            this.position = this.count > 0 ? this.index.getInt((this.count - 1) * 4) : 0;
+        }
+
+        private boolean hasRoom(int recordLength) {
+            return this.count < MessageLog.segmentMessages && this.position + recordLength <= this.data.capacity();
+        }
+
+        /**
+         * Drop the records from the first one that was not completely written, and
+         * the index entries after it
+         */
+        private void truncateTornRecords() {
+            int valid = 0;
+            while (valid < this.count && this.isComplete(valid)) {
+                valid++;
+            }
+            if (valid == this.count) {
+                return;
+            }
+            for (int record = valid; record < MessageLog.segmentMessages; record++) {
+                this.index.putInt(record * 4, 0);
+            }
+            this.count = valid;
+            this.position = this.start(valid);
+            this.index.force();
+        }
+
+        /**
+         * Whether a record fills the space the index gives it and matches its
+         * checksum
+         */
+        private boolean isComplete(int record) {
+            int start = this.start(record);
+            int end = this.index.getInt(record * 4);
+            if (start < 0 || end < start + RECORD_HEADER_LENGTH || end > this.data.capacity()
+                    || this.data.getInt(start) != end - start - RECORD_HEADER_LENGTH) {
+                return false;
+            }
+            return this.data.getInt(start + 4) == MessageLog.checksum(this.data.slice(start + 8, end - start - 8));
+        }
+
+        private int start(int record) {
+            return record > 0 ? this.index.getInt((record - 1) * 4) : 0;
+        }
+
+        private void append(long timestamp, byte[] message) {
+            // Write the record before the index entry that makes it visible
+            this.data.putInt(this.position, message.length);
+            this.data.putLong(this.position + 8, timestamp);
+            this.data.put(this.position + RECORD_HEADER_LENGTH, message);
+            this.data.putInt(this.position + 4, MessageLog.checksum(
+                    this.data.slice(this.position + 8, RECORD_HEADER_LENGTH - 8 + message.length)));
+            this.position += RECORD_HEADER_LENGTH + message.length;
+            this.index.putInt(this.count * 4, this.position);
+            this.count++;
+        }
+
+        private MessageHistory.Entry read(int record) {
+            int start = this.start(record);
+            int length = this.data.getInt(start);
+            long timestamp = this.data.getLong(start + 8);
+            byte[] message = new byte[length];
+            this.data.get(start + RECORD_HEADER_LENGTH, message);
+            return new MessageHistory.Entry(this.baseSequence + record, timestamp, message);
+        }
+
+        private void force() {
+            this.data.force();
+            this.index.force();
+        }
+    }
+
+    private File folder;
+
+    private TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    // The segment being appended to
+    private volatile Segment current;
+
+    private static int checksum(ByteBuffer bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    public static boolean isEnabled() {
+        return MessageLog.directory != null;
+    }
+
+    /**
+     * The names of the rooms that have a log on disk
+     *
+     * @return
+     */
+    public static ArrayList<String> getLoggedRooms() {
+        ArrayList<String> rooms = new ArrayList<>();
+        File[] folders = new File(MessageLog.directory).listFiles(File::isDirectory);
+        if (folders != null) {
+            for (File folder : folders) {
+                rooms.add(folder.getName());
+            }
+        }
+        return rooms;
+    }
+
+    /**
+     * Open the log of a room, creating it if it does not exist. Only the segment
+     * indexes are searched, no message is read.
+     *
+     * @param roomName
+     * @throws IOException
+     */
+    public MessageLog(String roomName) throws IOException {
+        // The room's folder must be directly inside the log directory, whatever the
+        // room name contains
+        this.folder = new File(MessageLog.directory, roomName).getCanonicalFile();
+        if (!new File(MessageLog.directory).getCanonicalFile().equals(this.folder.getParentFile())) {
+            throw new IOException("The room name " + roomName + " does not name a log directory");
+        }
+        if (!this.folder.isDirectory() && !this.folder.mkdirs()) {
+            throw new IOException("Cannot create the log directory " + this.folder);
+        }
+
+        File[] files = this.folder.listFiles((dir, name) -> name.endsWith(".log"));
+        if (files != null) {
+            for (File file : files) {
+                long baseSequence = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+                Segment segment = new Segment(this.folder, baseSequence, MessageLog.segmentSize);
+                this.segments.put(baseSequence, segment);
+            }
+        }
+        if (this.segments.isEmpty()) {
+            this.segments.put(0L, new Segment(this.folder, 0, MessageLog.segmentSize));
+        }
+        this.current = this.segments.lastEntry().getValue();
+        // Earlier segments were synced when they rolled over
+        this.current.truncateTornRecords();
+
+        MessageLog.startFlusher();
+    }
+
+    /**
+     * Append a message to the log
+     *
+     * @param timestamp
+     * @param message
+     * @return the sequence number of the message
+     * @throws IOException
+     */
+    public synchronized long append(long timestamp, byte[] message) throws IOException {
+        int recordLength = RECORD_HEADER_LENGTH + message.length;
+
+        // Roll over to a new segment when the current one is full
+        if (!this.current.hasRoom(recordLength)) {
+            this.current.force();
+            long baseSequence = this.getNextSequence();
+            this.current = new Segment(this.folder, baseSequence, Math.max(MessageLog.segmentSize, recordLength));
+            this.segments.put(baseSequence, this.current);
+        }
+
+        long sequence = this.getNextSequence();
+        this.current.append(timestamp, message);
+        MessageLog.dirtyLogs.add(this);
+        return sequence;
+    }
+
+    /**
+     * Read up to limit messages starting at a sequence number
+     *
+     * @param fromSequence
+     * @param limit
+     * @return
+     */
+    public synchronized ArrayList<MessageHistory.Entry> read(long fromSequence, int limit) {
+        ArrayList<MessageHistory.Entry> entries = new ArrayList<>();
+        long sequence = Math.max(fromSequence, this.getFirstSequence());
+
+        Map.Entry<Long, Segment> segmentEntry = this.segments.floorEntry(sequence);
+        while (segmentEntry != null && entries.size() < limit) {
+            Segment segment = segmentEntry.getValue();
+            for (int record = (int) (sequence - segment.baseSequence); record < segment.count
+                    && entries.size() < limit; record++) {
+                entries.add(segment.read(record));
+            }
+            segmentEntry = this.segments.higherEntry(segmentEntry.getKey());
+            if (segmentEntry != null) {
+                sequence = segmentEntry.getKey();
+            }
+        }
+        return entries;
+    }
+
+    public synchronized long getFirstSequence() {
+        return this.segments.firstKey();
+    }
+
+    public synchronized long getNextSequence() {
+        return this.current.baseSequence + this.current.count;
+    }
+
+    /**
+     * Sync the current segment. Earlier segments are synced when they roll over.
+     * Appends do not wait for the sync.
+     */
+    public void force() {
+        this.current.force();
+    }
+
+    /**
+     * Sync the logs of all rooms at a fixed interval, so many appends share one
+     * sync
+     */
+    private static synchronized void startFlusher() {
+        if (MessageLog.flusher != null) {
+            return;
+        }
+        MessageLog.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-log-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        MessageLog.flusher.scheduleWithFixedDelay(() -> {
+            for (MessageLog log : MessageLog.dirtyLogs) {
+                MessageLog.dirtyLogs.remove(log);
+                try {
+                    log.force();
+                } catch (Exception e) {
+                    ChatLogger.warn(() -> e.toString());
+                }
+            }
+        }, MessageLog.flushInterval, MessageLog.flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -0,0 +1,146 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of encoded frames waiting to be written to one client. The
+ * senders only add to the queue, the frames are written by a separate writer,
+ * so a slow client never holds up the sender or the rest of the room.
+ */
+public class OutboundQueue {
+
+    public enum OVERFLOW_POLICY {
+        // Discard the oldest queued frame to make room for the new one
+        DROP_OLDEST,
+        // Disconnect the client
+        DISCONNECT,
+        // Wait for room, disconnect the client if none frees up in time
+        BLOCK
+    }
+
+    // The maximum number of frames queued for one client
+    public static final int capacity = Integer.getInteger("chat.outbound.capacity", 1024);
+
+    // What to do when a client's queue is full
+    public static final OVERFLOW_POLICY overflowPolicy = OVERFLOW_POLICY
+            .valueOf(System.getProperty("chat.outbound.policy", "DISCONNECT").toUpperCase());
+
+    // How long the BLOCK policy waits for room in milliseconds. The waiting
+    // thread is the sender's, so the event loops of the nio mode cannot use it.
+    public static final long blockTimeout = Long.getLong("chat.outbound.blockTimeout", 1000);
+
+    // The most bytes of frames collected into one write to a client
+    public static final int batchSize = Integer.getInteger("chat.outbound.batchSize", 16384);
+
+    private ArrayBlockingQueue<byte[]> frames = new ArrayBlockingQueue<>(OutboundQueue.capacity);
+
+    // Whether a writer is currently draining the queue
+    private AtomicBoolean draining = new AtomicBoolean(false);
+
+    // Metrics, also counted for the whole server in ServerMetrics
+    private AtomicInteger maxDepth = new AtomicInteger();
+    private AtomicLong enqueuedCount = new AtomicLong();
+    private AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * Add a frame to the queue according to the overflow policy
+     *
+     * @param encodedFrame
+     * @return false if the client should be disconnected
+     */
+    public boolean offer(byte[] encodedFrame) {
+        boolean added = this.frames.offer(encodedFrame);
+
+        if (!added) {
+            switch (OutboundQueue.overflowPolicy) {
+            case DROP_OLDEST:
+                while (!added) {
+                    if (this.frames.poll() != null) {
+                        this.recordDrop();
+                    }
+                    added = this.frames.offer(encodedFrame);
+                }
+                break;
+            case BLOCK:
+                try {
+                    added = this.frames.offer(encodedFrame, OutboundQueue.blockTimeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            case DISCONNECT:
+                break;
+            }
+        }
+
+        if (!added) {
+            this.recordDrop();
+            return false;
+        }
+
+        this.enqueuedCount.incrementAndGet();
+        int depth = this.frames.size();
+        // Only a new maximum is written, the usual case is a read
+        if (depth > this.maxDepth.get()) {
+            this.maxDepth.accumulateAndGet(depth, Math::max);
+        }
+        ServerMetrics.recordOutboundDepth(depth);
+        return true;
+    }
+
+    private void recordDrop() {
+        this.droppedCount.incrementAndGet();
+        ServerMetrics.recordOutboundDrop();
+    }
+
+    public byte[] poll() {
+        return this.frames.poll();
+    }
+
+    public boolean isEmpty() {
+        return this.frames.isEmpty();
+    }
+
+    public void clear() {
+        this.frames.clear();
+    }
+
+    /**
+     * Claim the queue for a writer
+     *
+     * @return true if no other writer is draining the queue
+     */
+    public boolean startDraining() {
+        return this.draining.compareAndSet(false, true);
+    }
+
+    public void finishDraining() {
+        this.draining.set(false);
+    }
+
+    public int getDepth() {
+        return this.frames.size();
+    }
+
+    public int getMaxDepth() {
+        return this.maxDepth.get();
+    }
+
+    /**
+     * Start measuring the most frames queued from the current depth
+     */
+    public void resetMaxDepth() {
+        this.maxDepth.set(this.frames.size());
+    }
+
+    public long getEnqueuedCount() {
+        return this.enqueuedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+}
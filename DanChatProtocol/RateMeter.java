@@ -0,0 +1,71 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The rate of an event, as a one minute exponentially weighted moving average.
+ * Events are only counted when they happen. The average moves on in ticks of
+ * five seconds, which the thread that marks or reads the meter first after a
+ * tick is due catches up on, so the meter needs no thread of its own and no
+ * lock.
+ */
+public class RateMeter {
+
+    private static final long TICK_INTERVAL = 5_000_000_000L;
+
+    // How much of the average one tick replaces, for a one minute window
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60);
+
+    private LongAdder uncounted = new LongAdder();
+
+    private LongAdder count = new LongAdder();
+
+    // Events per second, negative until the first tick
+    private volatile double rate = -1;
+
+    private AtomicLong lastTick = new AtomicLong(System.nanoTime());
+
+    /**
+     * Count an event
+     */
+    public void mark() {
+        this.tickIfDue();
+        this.uncounted.increment();
+        this.count.increment();
+    }
+
+    /**
+     * The average number of events per second over about the last minute
+     *
+     * @return
+     */
+    public double getRate() {
+        this.tickIfDue();
+        return Math.max(this.rate, 0);
+    }
+
+    /**
+     * The number of events since the meter was created
+     *
+     * @return
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    private void tickIfDue() {
+        long last = this.lastTick.get();
+        long age = System.nanoTime() - last;
+        if (age < TICK_INTERVAL) {
+            return;
+        }
+        // Only the thread that moves the last tick on catches up
+        if (!this.lastTick.compareAndSet(last, last + age - age % TICK_INTERVAL)) {
+            return;
+        }
+        for (long ticks = age / TICK_INTERVAL; ticks > 0; ticks--) {
+            double instantRate = this.uncounted.sumThenReset() / (TICK_INTERVAL / 1e9);
+            this.rate = this.rate < 0 ? instantRate : this.rate + ALPHA * (instantRate - this.rate);
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A task of a ChatClient that runs on the scheduler shared by all clients. The
+ * task decides in run whether to schedule itself again, so a task that is due
+ * less often than planned is checked and moved instead of being cancelled and
+ * recreated.
+ */
+public abstract class ScheduledClientTask implements Runnable {
+
+    protected ChatClient chatClient;
+
+    private boolean cancelled = false;
+
+    private ScheduledFuture<?> future;
+
+    public ScheduledClientTask(ChatClient chatClient) {
+        this.chatClient = chatClient;
+    }
+
+    /**
+     * Run the task after a delay, unless it was cancelled
+     *
+     * @param delay in milliseconds
+     */
+    protected synchronized void schedule(long delay) {
+        if (!this.cancelled) {
+            this.future = ChatClient.getScheduler().schedule(this, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void cancel() {
+        this.cancelled = true;
+        if (this.future != null) {
+            this.future.cancel(false);
+        }
+    }
+
+    protected synchronized boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Spread a delay randomly by a fifth either way, so clients that started
+     * together do not keep acting together
+     *
+     * @param delay
+     * @return
+     */
+    protected static long jitter(long delay) {
+        return (long) (delay * (0.8 + 0.4 * ThreadLocalRandom.current().nextDouble()));
+    }
+
+}
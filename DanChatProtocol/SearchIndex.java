@@ -0,0 +1,302 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An inverted index of the words in a chatroom's recent messages. Every word
+ * maps to the ascending sequence numbers of the messages containing it, so a
+ * search only looks at the messages that match. The index is updated as
+ * messages are added and forgets messages that dropped out of the history.
+ */
+public class SearchIndex {
+
+    // Whether rooms keep an index, otherwise SEARCH scans the history
+    public static final boolean enabled = !"false".equals(System.getProperty("chat.search.index"));
+
+    // How many messages are added between sweeps of the words with no messages left
+    private static final int SWEEP_INTERVAL = 10000;
+
+    /**
+     * The ascending sequence numbers of the messages containing a word
+     */
+    private static class Postings {
+        private long[] sequences = new long[4];
+        private int start;
+        private int end;
+
+        private void add(long sequence) {
+            // A word that appears twice in a message is only recorded once
+            if (this.end > this.start && this.sequences[this.end - 1] == sequence) {
+                return;
+            }
+            if (this.end == this.sequences.length) {
+                // Reuse the space of the forgotten messages before growing
+                int size = this.end - this.start;
+                long[] sequences = size * 2 < this.sequences.length ? this.sequences : new long[this.sequences.length * 2];
+                System.arraycopy(this.sequences, this.start, sequences, 0, size);
+                this.sequences = sequences;
+                this.start = 0;
+                this.end = size;
+            }
+            this.sequences[this.end++] = sequence;
+        }
+
+        private void forgetBefore(long firstSequence) {
+            while (this.start < this.end && this.sequences[this.start] < firstSequence) {
+                this.start++;
+            }
+        }
+
+        private boolean isEmpty() {
+            return this.start == this.end;
+        }
+
+        /**
+         * The sequence numbers from a sequence number on
+         */
+        private long[] from(long fromSequence) {
+            int index = Arrays.binarySearch(this.sequences, this.start, this.end, fromSequence);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return Arrays.copyOfRange(this.sequences, index, this.end);
+        }
+    }
+
+    /**
+     * A word of a query
+     */
+    private static class Term {
+        private String word;
+        // Whether it matches every word starting with it
+        private boolean prefix;
+
+        private Term(String word, boolean prefix) {
+            this.word = word;
+            this.prefix = prefix;
+        }
+
+        private boolean matches(String token) {
+            return this.prefix ? token.startsWith(this.word) : token.equals(this.word);
+        }
+    }
+
+    /**
+     * A query matched against the text of messages, for rooms without an index.
+     * It finds the same messages as the index would.
+     */
+    public static class Query {
+        private ArrayList<Term> terms;
+
+        // Finds the longest ASCII word of the query in any case, a message without
+        // it is not tokenized
+        private TextMatcher candidates;
+
+        public Query(String query) {
+            this.terms = SearchIndex.parse(query);
+            String longest = null;
+            for (Term term : this.terms) {
+                boolean ascii = term.word.chars().allMatch(c -> c < 0x80);
+                if (ascii && (longest == null || term.word.length() > longest.length())) {
+                    longest = term.word;
+                }
+            }
+            if (longest != null) {
+                this.candidates = new TextMatcher(longest.getBytes(StandardCharsets.US_ASCII), true);
+            }
+        }
+
+        /**
+         * Whether a message contains every word of the query
+         *
+         * @param message the UTF-8 text of the message
+         * @return
+         */
+        public boolean matches(byte[] message) {
+            if (this.terms.isEmpty() || this.candidates != null && !this.candidates.matches(message)) {
+                return false;
+            }
+            ArrayList<String> tokens = SearchIndex.tokenize(new String(message, StandardCharsets.UTF_8));
+            for (Term term : this.terms) {
+                if (tokens.stream().noneMatch(term::matches)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Sorted by word so that prefix queries are a range lookup
+    private TreeMap<String, Postings> words = new TreeMap<>();
+
+    // Messages with a lower sequence number are no longer in the history
+    private long firstSequence;
+
+    private int addedSinceSweep;
+
+    /**
+     * Split text into lower case words of letters and digits
+     *
+     * @param text
+     * @return
+     */
+    public static ArrayList<String> tokenize(String text) {
+        ArrayList<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordCharacter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordCharacter && start < 0) {
+                start = i;
+            } else if (!wordCharacter && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Split a query into its words. A word ending with * matches every word
+     * starting with it.
+     *
+     * @param query
+     * @return
+     */
+    private static ArrayList<Term> parse(String query) {
+        ArrayList<Term> terms = new ArrayList<>();
+        for (String term : query.trim().split("\\s+")) {
+            boolean prefix = term.endsWith("*");
+            for (String token : SearchIndex.tokenize(term)) {
+                terms.add(new Term(token, prefix));
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Index a message
+     *
+     * @param sequence
+     * @param text
+     */
+    public synchronized void add(long sequence, String text) {
+        for (String token : SearchIndex.tokenize(text)) {
+            this.words.computeIfAbsent(token, key -> new Postings()).add(sequence);
+        }
+
+        if (++this.addedSinceSweep >= SWEEP_INTERVAL) {
+            this.addedSinceSweep = 0;
+            this.sweep();
+        }
+    }
+
+    /**
+     * Forget the messages before a sequence number
+     *
+     * @param firstSequence
+     */
+    public synchronized void forgetBefore(long firstSequence) {
+        this.firstSequence = Math.max(this.firstSequence, firstSequence);
+    }
+
+    /**
+     * Find the messages containing every word of the query, from a sequence
+     * number on. A word ending with * matches every word starting with it.
+     *
+     * @param query
+     * @param fromSequence
+     * @param limit
+     * @return the ascending sequence numbers of up to limit matching messages
+     */
+    public synchronized long[] search(String query, long fromSequence, int limit) {
+        long from = Math.max(fromSequence, this.firstSequence);
+
+        // Look up the matches of every term
+        ArrayList<long[]> matches = new ArrayList<>();
+        for (Term term : SearchIndex.parse(query)) {
+            matches.add(term.prefix ? this.findPrefix(term.word, from) : this.find(term.word, from));
+        }
+        if (matches.isEmpty()) {
+            return new long[0];
+        }
+
+        // Intersect the matches, starting with the fewest
+        matches.sort((a, b) -> Integer.compare(a.length, b.length));
+        long[] result = new long[Math.min(matches.get(0).length, limit)];
+        int count = 0;
+        int[] positions = new int[matches.size()];
+        for (long sequence : matches.get(0)) {
+            if (count == result.length) {
+                break;
+            }
+            boolean inAll = true;
+            for (int i = 1; i < matches.size() && inAll; i++) {
+                long[] other = matches.get(i);
+                while (positions[i] < other.length && other[positions[i]] < sequence) {
+                    positions[i]++;
+                }
+                inAll = positions[i] < other.length && other[positions[i]] == sequence;
+            }
+            if (inAll) {
+                result[count++] = sequence;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private long[] find(String token, long from) {
+        Postings postings = this.words.get(token);
+        if (postings == null) {
+            return new long[0];
+        }
+        postings.forgetBefore(this.firstSequence);
+        return postings.from(from);
+    }
+
+    private long[] findPrefix(String prefix, long from) {
+        // Merge the matches of every word with the prefix
+        ArrayList<long[]> parts = new ArrayList<>();
+        int size = 0;
+        for (Postings postings : this.words.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            postings.forgetBefore(this.firstSequence);
+            long[] part = postings.from(from);
+            parts.add(part);
+            size += part.length;
+        }
+        long[] merged = new long[size];
+        int index = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, merged, index, part.length);
+            index += part.length;
+        }
+        Arrays.sort(merged);
+
+        // A message can contain several words with the prefix
+        int count = 0;
+        for (int i = 0; i < merged.length; i++) {
+            if (count == 0 || merged[count - 1] != merged[i]) {
+                merged[count++] = merged[i];
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+
+    /**
+     * Remove the words whose messages have all been forgotten
+     */
+    private void sweep() {
+        Iterator<Map.Entry<String, Postings>> iterator = this.words.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Postings postings = iterator.next().getValue();
+            postings.forgetBefore(this.firstSequence);
+            if (postings.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+}
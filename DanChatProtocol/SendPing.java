@@ -1,16 +1,32 @@
-import java.util.TimerTask;
-
-public class SendPing extends TimerTask {
-
-    private ChatClient chatClient;
+/**
+ * Keeps the connection alive. A PING is only sent when the client has sent
+ * nothing else for a whole interval, any frame shows the server the client is
+ * still there.
+ */
+public class SendPing extends ScheduledClientTask {
 
     public SendPing(ChatClient chatClient) {
-        this.chatClient = chatClient;
+        super(chatClient);
+    }
+
+    public void start() {
+        this.schedule(ScheduledClientTask.jitter(ChatClient.pingInterval));
     }
 
     @Override
     public void run() {
-        this.chatClient.sendMessage(true, Global.FRAME_TYPE.PING, Global.ERROR_CODE.NONE, "", "");
+        if (this.isCancelled()) {
+            return;
+        }
+
+        long idle = System.currentTimeMillis() - this.chatClient.getLastSent();
+        if (idle >= ChatClient.pingInterval) {
+            this.chatClient.sendMessage(true, Global.FRAME_TYPE.PING, Global.ERROR_CODE.NONE, "", "");
+            idle = 0;
+        }
+
+        // Check again when the connection will have been idle for an interval
+        this.schedule(ScheduledClientTask.jitter(ChatClient.pingInterval - idle));
     }
 
 }
@@ -11,8 +11,9 @@ public class ServerClosedState implements ServerState {
     public void handleDataFrame(DataFrame frame) {
         if (frame.getType() == Global.FRAME_TYPE.OPEN.getValue()) {
 
-            // Validate the supported version
-            if (ChatServer.serverVersion != frame.getVersion()) {
+            // Validate the supported version, every version up to the server's is
+            // supported
+            if (frame.getVersion() < 1) {
                 this.clientHandler.sendErrorFrame(Global.ERROR_CODE.VERSION_NOT_SUPPORTED);
             }
 
@@ -23,9 +24,22 @@ public class ServerClosedState implements ServerState {
                 this.clientHandler.sendErrorFrame(Global.ERROR_CODE.INVALID_SECRET_KEY);
             }
 
+            // Agree to compress frames if the client offers it
+            String extendedData = "";
+            boolean compression = FrameCompressor.enabled
+                    && FrameCompressor.NAME.equals(Global.getField(frame.getExtendedData(), "compress"));
+            if (compression) {
+                extendedData = Global.addField(extendedData, "compress", FrameCompressor.NAME);
+            }
+
+            // Use the client's version unless the server only knows older ones. The
+            // reply tells the client which one is used.
+            this.clientHandler.setProtocolVersion(Math.min(frame.getVersion(), ChatServer.serverVersion));
+
             // Version is supported, and secret key matches, send an open frame back to
             // complete the handshake
-            this.clientHandler.sendMessage(true, Global.FRAME_TYPE.OPEN, Global.ERROR_CODE.NONE, "", "");
+            this.clientHandler.sendMessage(true, Global.FRAME_TYPE.OPEN, Global.ERROR_CODE.NONE, "", extendedData);
+            this.clientHandler.setCompressionEnabled(compression);
 
             // Switch to OPEN state
             this.clientHandler.setCurrentState(this.clientHandler.getOpenState());
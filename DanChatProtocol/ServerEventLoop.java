@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread serving many client channels. Each connection is
+ * owned by exactly one event loop, and every state transition of its handler
+ * runs on that loop's thread.
+ */
+public class ServerEventLoop implements Runnable {
+
+    private Selector selector;
+
+    // Work submitted by other threads (new channels, pending writes)
+    private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private Thread thread;
+
+    public ServerEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Run a task on the event loop thread
+     *
+     * @param task
+     */
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        // The loop drains its tasks after processing the selected keys, so there
+        // is no need to wake it up from its own thread
+        if (!this.inEventLoop()) {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Hand an accepted channel over to this event loop
+     *
+     * @param channel
+     */
+    public void register(SocketChannel channel) {
+        this.execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                ChannelConnection connection = new ChannelConnection(this, channel);
+                connection.setKey(channel.register(this.selector, SelectionKey.OP_READ, connection));
+            } catch (Exception e) {
+                ChatLogger.warn(() -> e.toString());
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    ChatLogger.warn(() -> ex.toString());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                this.selector.select();
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    ChannelConnection connection = (ChannelConnection) key.attachment();
+                    if (!key.isValid()) {
+                        connection.getHandler().closeSocket();
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        connection.flushPendingWrites();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.handleRead();
+                    }
+                }
+
+                this.runTasks();
+            } catch (Exception e) {
+                ChatLogger.warn(() -> e.toString());
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                ChatLogger.warn(() -> e.toString());
+            }
+        }
+    }
+
+}
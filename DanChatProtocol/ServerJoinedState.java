@@ -1,5 +1,3 @@
-import java.util.ArrayList;
-
 public class ServerJoinedState implements ServerState {
     protected ChatServer.Handler clientHandler;
 
@@ -12,9 +10,11 @@ public class ServerJoinedState implements ServerState {
 
         if (dataFrame.getType() == Global.FRAME_TYPE.LEAVE.getValue()) {
 
-            // Notify all its chat mates
+            // Notify all its chat mates, on this server and on the other nodes
+            String notice = this.clientHandler.getDisplayName() + " left the room.";
             this.clientHandler.sendMessageToAllChatmates(true, Global.FRAME_TYPE.TEXT, 0, Global.ERROR_CODE.NONE,
-                    this.clientHandler.getDisplayName() + " left the room.", "");
+                    notice, "");
+            ClusterNode.publishNotice(this.clientHandler.getRoomName(), notice);
 
             // Remove the client from the its current chatroom
             this.clientHandler.leaveCurrentRoom();
@@ -46,15 +46,78 @@ public class ServerJoinedState implements ServerState {
                 return;
             }
 
-            // Record the message
-            roomData.addMessage(dataFrame);
+            // A client that numbers its messages resends the ones that were not
+            // acknowledged, skip those that were already received
+            long clientSequence = Global.getLongField(dataFrame.getExtendedData(), "seq", -1);
+            if (clientSequence >= 0 && clientSequence <= this.clientHandler.getLastTextSequence()) {
+                this.clientHandler.acknowledge(clientSequence);
+                return;
+            }
 
-            // Send an ACK message back to the sender
-            this.clientHandler.sendMessage(true, Global.FRAME_TYPE.ACK, Global.ERROR_CODE.NONE, "", "");
+            // A message larger than a frame comes as several TEXT frames, all but the
+            // last with the end flag cleared. Collect them to record the whole
+            // message, but relay each one as it arrives so that a large message does
+            // not hold up the messages of the other participants.
+            byte[] data = dataFrame.getMainDataBytes();
+            MessageAssembler assembler = this.clientHandler.getAssembler();
+            long part = Global.getLongField(dataFrame.getExtendedData(), "part", -1);
+            if (part == 0) {
+                assembler.reset();
+            }
+            boolean fragment = !dataFrame.getEnd() || !assembler.isEmpty() || part > 0;
+
+            // A fragment out of place means one was lost, for example when the client
+            // resent only the end of a message after reconnecting. The message cannot
+            // be completed, its remaining fragments are acknowledged but dropped.
+            if (part >= 0 && part != assembler.getParts()) {
+                assembler.reset();
+                this.acknowledgeText(roomData, clientSequence, dataFrame.getEnd());
+                return;
+            }
+            if (fragment && !assembler.append(data)) {
+                this.clientHandler.sendErrorFrame(Global.ERROR_CODE.INVALID_DATA_CONTENT);
+                this.clientHandler.closeSocket();
+                return;
+            }
+
+            // The fragments are relayed with the id of their stream and their position
+            String extendedData = "";
+            if (fragment) {
+                long streamId = assembler.getParts() == 1 ? this.clientHandler.startStream()
+                        : this.clientHandler.getStreamId();
+                extendedData = Global.addField(Global.addField(extendedData, "sid", streamId), "part",
+                        assembler.getParts() - 1);
+            }
+
+            // Record the message once it is complete. The sequence number lets a client
+            // recover only the messages it missed. The other nodes of the cluster
+            // record it too.
+            String timestamp = Global.getField(dataFrame.getExtendedData(), "ts");
+            if (dataFrame.getEnd()) {
+                byte[] message = fragment ? assembler.finish() : data;
+                long sequence = roomData.addMessage(message);
+                // A message the room could not record is not acknowledged, the client
+                // sends it again once it reconnects
+                if (sequence < 0) {
+                    this.clientHandler.sendErrorFrame(Global.ERROR_CODE.INVALID_DATA_CONTENT);
+                    this.clientHandler.closeSocket();
+                    return;
+                }
+                extendedData = Global.addField(extendedData, "seq", sequence);
+                ClusterNode.publishText(this.clientHandler.getRoomName(), message, timestamp);
+            }
 
-            // Broadcast the message to all the chatroom's participants
-            this.clientHandler.sendMessageToAllChatmates(dataFrame.getEnd(), Global.FRAME_TYPE.TEXT, 0,
-                    Global.ERROR_CODE.NONE, dataFrame.getMainData(), "");
+            this.acknowledgeText(roomData, clientSequence, dataFrame.getEnd());
+
+            // Broadcast the frame to all the chatroom's participants, relaying the
+            // received bytes without decoding them. The sender's timestamp is passed on
+            // so that clients can measure the delivery latency.
+            if (timestamp != null) {
+                extendedData = Global.addField(extendedData, "ts", timestamp);
+            }
+            this.clientHandler.sendFrameToAllChatmates(new DataFrame(dataFrame.getEnd(), false, false, false, 0,
+                    Global.FRAME_TYPE.TEXT.getValue(), Global.ERROR_CODE.NONE.getValue(), data,
+                    extendedData.getBytes()));
 
         } else if (dataFrame.getType() == Global.FRAME_TYPE.RECOVERY.getValue()) {
 
@@ -64,15 +127,37 @@ public class ServerJoinedState implements ServerState {
                 return;
             }
 
-            // Get all the messages of the chatroom and send them to the client
-            ArrayList<DataFrame> messages = chatRoomData.getMessages();
-            DataFrame message = null;
-            for (int i = 0; i < messages.size(); i++) {
-                message = messages.get(i);
-                // Mark the last message as end
-                this.clientHandler.sendMessage(i == messages.size() - 1, Global.FRAME_TYPE.TEXT, Global.ERROR_CODE.NONE,
-                        message.getMainData(), "");
+            // The client asks for a page of messages starting at a sequence number. By
+            // default, or when the sequence number was given out by another node of the
+            // cluster, the page starts at the oldest message. A client that does not know
+            // about pages cannot ask for the next one, it gets the recent history kept in
+            // memory as before and takes the last TEXT frame as the end.
+            boolean paged = this.isPagedRequest(dataFrame);
+            MessageHistory.Entry[] messages;
+            if (paged) {
+                String request = dataFrame.getExtendedData();
+                long fromSequence = ClusterNode.isLocalCursor(request) ? Global.getLongField(request, "from", 0) : 0;
+                long pageSize = Global.getLongField(request, "limit", ChatServer.recoveryPageSize);
+                pageSize = Math.max(1, Math.min(pageSize, ChatServer.recoveryMaxPageSize));
+                messages = chatRoomData.getMessages(fromSequence, (int) pageSize);
+            } else {
+                messages = chatRoomData.getHistory().snapshot();
             }
+            for (int i = 0; i < messages.length; i++) {
+                this.clientHandler.sendFrame(new DataFrame(!paged && i == messages.length - 1, false, false, false,
+                        ChatServer.serverVersion, Global.FRAME_TYPE.TEXT.getValue(), Global.ERROR_CODE.NONE.getValue(),
+                        messages[i].getData(), Global.addField("", "seq", messages[i].getSequence()).getBytes()));
+            }
+            if (!paged) {
+                return;
+            }
+
+            // End the page with the cursor of the next page
+            long nextSequence = messages.length > 0 ? messages[messages.length - 1].getSequence() + 1
+                    : chatRoomData.getNextSequence();
+            String cursor = Global.addField("", "next", nextSequence);
+            cursor = Global.addField(cursor, "more", nextSequence < chatRoomData.getNextSequence() ? 1 : 0);
+            this.clientHandler.sendMessage(true, Global.FRAME_TYPE.RECOVERY, Global.ERROR_CODE.NONE, "", cursor);
 
         } else if (dataFrame.getType() == Global.FRAME_TYPE.SEARCH.getValue()) {
 
@@ -84,27 +169,35 @@ public class ServerJoinedState implements ServerState {
                 return;
             }
 
-            // Get all the messages of the chatroom and send them to the client
-            ArrayList<DataFrame> allMessages = chatRoomData.getMessages();
-            ArrayList<DataFrame> filteredMessages = new ArrayList<>();
-            DataFrame message = null;
-
-            // Filter the message by the search string
-            for (int i = 0; i < allMessages.size(); i++) {
-                message = allMessages.get(i);
-                if (message.getMainData().contains(searchString)) {
-                    filteredMessages.add(message);
-                }
+            // The results are paged like RECOVERY
+            String request = dataFrame.getExtendedData();
+            long fromSequence = ClusterNode.isLocalCursor(request) ? Global.getLongField(request, "from", 0) : 0;
+            long pageSize = Global.getLongField(request, "limit", ChatServer.searchPageSize);
+            pageSize = Math.max(1, Math.min(pageSize, ChatServer.searchMaxPageSize));
+
+            // Look for one more message than requested to know whether there are more
+            MessageHistory.Entry[] messages = chatRoomData.search(searchString, fromSequence, (int) pageSize + 1);
+            int count = (int) Math.min(messages.length, pageSize);
+
+            // Send the matching messages, the last one ends the results of a client that
+            // does not know about pages
+            boolean paged = this.isPagedRequest(dataFrame);
+            for (int i = 0; i < count; i++) {
+                this.clientHandler.sendFrame(new DataFrame(!paged && i == count - 1, false, false, false,
+                        ChatServer.serverVersion, Global.FRAME_TYPE.TEXT.getValue(), Global.ERROR_CODE.NONE.getValue(),
+                        messages[i].getData(), Global.addField("", "seq", messages[i].getSequence()).getBytes()));
             }
-
-            // Send the filtered messages
-            for (int i = 0; i < filteredMessages.size(); i++) {
-                message = filteredMessages.get(i);
-                // Mark the last message as end
-                this.clientHandler.sendMessage(i == filteredMessages.size() - 1, Global.FRAME_TYPE.TEXT,
-                        Global.ERROR_CODE.NONE, message.getMainData(), "");
+            if (!paged) {
+                return;
             }
 
+            // End the page with the cursor of the next page
+            long nextSequence = count > 0 ? messages[count - 1].getSequence() + 1 : chatRoomData.getNextSequence();
+            String cursor = Global.addField("", "next", nextSequence);
+            cursor = Global.addField(cursor, "more", messages.length > count ? 1 : 0);
+            this.clientHandler.sendMessage(true, Global.FRAME_TYPE.SEARCH, Global.ERROR_CODE.NONE, searchString,
+                    cursor);
+
         } else if (dataFrame.getType() == Global.FRAME_TYPE.PING.getValue()) {
 
             this.clientHandler.handlePingFrame();
@@ -121,4 +214,38 @@ public class ServerJoinedState implements ServerState {
 
     }
 
-}
\ No newline at end of file
+    /**
+     * Numbered frames get a cumulative ACK, other messages an ACK each. The room
+     * remembers the frames it accepted from the client in case it reconnects.
+     *
+     * @param roomData
+     * @param clientSequence the number the client gave the frame, or -1
+     * @param end            whether the frame ends a message
+     */
+    private void acknowledgeText(ChatRoomData roomData, long clientSequence, boolean end) {
+        if (clientSequence >= 0) {
+            if (this.clientHandler.getClientId() >= 0) {
+                roomData.recordTextSequence(this.clientHandler.getDisplayName(), this.clientHandler.getClientId(),
+                        clientSequence);
+            }
+            this.clientHandler.acknowledge(clientSequence);
+        } else if (end) {
+            this.clientHandler.sendMessage(true, Global.FRAME_TYPE.ACK, Global.ERROR_CODE.NONE, "", "");
+        }
+    }
+
+    /**
+     * Whether a RECOVERY or SEARCH request expects its page to end with a cursor
+     * frame. Clients that page their requests ask for a page or use protocol
+     * version 2, older clients only handle the TEXT frames of the results.
+     *
+     * @param dataFrame
+     * @return
+     */
+    private boolean isPagedRequest(DataFrame dataFrame) {
+        String request = dataFrame.getExtendedData();
+        return Global.getField(request, "from") != null || Global.getField(request, "limit") != null
+                || this.clientHandler.getProtocolVersion() >= DataFrame.COMPACT_VERSION;
+    }
+
+}
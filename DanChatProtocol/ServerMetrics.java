@@ -0,0 +1,452 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The server's counters and histograms. Recording only adds to striped
+ * counters and lock-free histograms, so the metrics can stay on under full
+ * load. They are read over JMX as danchat:type=ServerMetrics, and as text from
+ * http://localhost:<chat.metrics.port>/metrics if the port is set. The outbound
+ * queue of every open connection is listed with its depth, the most frames it
+ * held and the frames it dropped.
+ */
+public class ServerMetrics {
+
+    // Port of the HTTP endpoint on the loopback interface, 0 for no endpoint
+    public static final int httpPort = Integer.getInteger("chat.metrics.port", 0);
+
+    // The connection states, in the order of their index
+    public static final String[] STATES = { "CLOSED", "OPEN", "JOINED", "CLOSING" };
+
+    /**
+     * The metrics as seen over JMX
+     */
+    public interface ServerMetricsMXBean {
+        Map<String, Long> getFramesIn();
+
+        Map<String, Long> getFramesOut();
+
+        long getBytesIn();
+
+        long getBytesOut();
+
+        long getFanoutCount();
+
+        double getFanoutMeanNanos();
+
+        long getFanoutP99Nanos();
+
+        long getFanoutMaxNanos();
+
+        Map<String, Double> getRoomMessageRates();
+
+        Map<String, Long> getConnections();
+
+        long getTimeoutEvictions();
+
+        long getOutboundDropped();
+
+        long getOutboundDepth();
+
+        int getOutboundMaxDepth();
+
+        /**
+         * Start measuring the most frames queued from the current depths, for the
+         * server and for each connection
+         */
+        void resetOutboundMaxDepth();
+
+        Map<String, Integer> getOutboundQueueDepths();
+
+        Map<String, Integer> getOutboundQueueMaxDepths();
+
+        Map<String, Long> getOutboundQueueDropped();
+
+        long getBufferPoolHits();
+
+        long getBufferPoolMisses();
+
+        long getBufferPoolBytesInUse();
+    }
+
+    // Frame types are counted by their value, every type of version 2 fits in a
+    // byte. Other values are counted as type 0.
+    private static final int TYPES = 256;
+
+    private static LongAdder[] framesIn = ServerMetrics.newCounters(TYPES);
+    private static LongAdder[] framesOut = ServerMetrics.newCounters(TYPES);
+    private static LongAdder bytesIn = new LongAdder();
+    private static LongAdder bytesOut = new LongAdder();
+
+    // Nanoseconds to queue a broadcast frame for every participant of a room
+    private static LatencyHistogram fanoutLatency = new LatencyHistogram();
+
+    private static AtomicLongArray connections = new AtomicLongArray(STATES.length);
+
+    private static LongAdder timeoutEvictions = new LongAdder();
+
+    // Frames dropped by the overflow policy of a client's outbound queue, and the
+    // most frames queued for one client since the start or the last reset
+    private static LongAdder outboundDropped = new LongAdder();
+    private static AtomicInteger outboundMaxDepth = new AtomicInteger();
+
+    private static LongAdder[] newCounters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    private static int typeIndex(int type) {
+        return type > 0 && type < TYPES ? type : 0;
+    }
+
+    /**
+     * Count a frame received from a client
+     *
+     * @param type
+     * @param bytes including the length prefix
+     */
+    public static void recordFrameIn(int type, int bytes) {
+        ServerMetrics.framesIn[ServerMetrics.typeIndex(type)].increment();
+        ServerMetrics.bytesIn.add(bytes);
+    }
+
+    /**
+     * Count a frame sent or queued for a client
+     *
+     * @param type
+     * @param bytes including the length prefix
+     */
+    public static void recordFrameOut(int type, int bytes) {
+        ServerMetrics.framesOut[ServerMetrics.typeIndex(type)].increment();
+        ServerMetrics.bytesOut.add(bytes);
+    }
+
+    public static void recordFanout(long nanos) {
+        ServerMetrics.fanoutLatency.record(nanos);
+    }
+
+    /**
+     * Move a connection from one state to another
+     *
+     * @param from the index of its state, -1 for a new connection
+     * @param to   the index of its new state, -1 for a closed connection
+     */
+    public static void moveConnection(int from, int to) {
+        if (from >= 0) {
+            ServerMetrics.connections.decrementAndGet(from);
+        }
+        if (to >= 0) {
+            ServerMetrics.connections.incrementAndGet(to);
+        }
+    }
+
+    public static void recordTimeoutEviction() {
+        ServerMetrics.timeoutEvictions.increment();
+    }
+
+    public static void recordOutboundDrop() {
+        ServerMetrics.outboundDropped.increment();
+    }
+
+    /**
+     * Note the number of frames queued for a client after queueing one
+     *
+     * @param depth
+     */
+    public static void recordOutboundDepth(int depth) {
+        // Only a new maximum is written, the usual case is a read
+        if (depth > ServerMetrics.outboundMaxDepth.get()) {
+            ServerMetrics.outboundMaxDepth.accumulateAndGet(depth, Math::max);
+        }
+    }
+
+    /**
+     * The frames currently queued for all the open connections
+     *
+     * @return
+     */
+    public static long getOutboundDepth() {
+        long depth = 0;
+        for (ChatServer.Handler connection : ChatServer.Handler.getConnections()) {
+            depth += connection.getOutboundQueue().getDepth();
+        }
+        return depth;
+    }
+
+    public static void resetOutboundMaxDepth() {
+        int maxDepth = 0;
+        for (ChatServer.Handler connection : ChatServer.Handler.getConnections()) {
+            OutboundQueue queue = connection.getOutboundQueue();
+            queue.resetMaxDepth();
+            maxDepth = Math.max(maxDepth, queue.getMaxDepth());
+        }
+        ServerMetrics.outboundMaxDepth.set(maxDepth);
+    }
+
+    /**
+     * Register the metrics with JMX, and start the HTTP endpoint if a port is set
+     */
+    public static void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(),
+                    new ObjectName("danchat:type=ServerMetrics"));
+        } catch (Exception e) {
+            ChatLogger.warn(() -> "The metrics cannot be registered with JMX. " + e);
+        }
+
+        if (ServerMetrics.httpPort <= 0) {
+            return;
+        }
+        try {
+            // Only local clients can read the metrics
+            HttpServer server = HttpServer
+                    .create(new InetSocketAddress(InetAddress.getLoopbackAddress(), ServerMetrics.httpPort), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = ServerMetrics.render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            ChatLogger.info(() -> "Metrics are served at http://localhost:" + ServerMetrics.httpPort + "/metrics");
+        } catch (IOException e) {
+            ChatLogger.warn(() -> "The metrics endpoint cannot be started. " + e);
+        }
+    }
+
+    /**
+     * The metrics as text, one name{labels} value per line
+     *
+     * @return
+     */
+    public static String render() {
+        StringBuilder text = new StringBuilder();
+        ServerMetrics.appendCounters(text, "chat_frames_in", ServerMetrics.framesIn);
+        ServerMetrics.appendCounters(text, "chat_frames_out", ServerMetrics.framesOut);
+        text.append("chat_bytes_in ").append(ServerMetrics.bytesIn.sum()).append('\n');
+        text.append("chat_bytes_out ").append(ServerMetrics.bytesOut.sum()).append('\n');
+
+        LatencyHistogram fanout = ServerMetrics.fanoutLatency;
+        text.append("chat_fanout_count ").append(fanout.getCount()).append('\n');
+        text.append("chat_fanout_nanos{quantile=\"0.5\"} ").append(fanout.getPercentile(50)).append('\n');
+        text.append("chat_fanout_nanos{quantile=\"0.99\"} ").append(fanout.getPercentile(99)).append('\n');
+        text.append("chat_fanout_nanos{quantile=\"1\"} ").append(fanout.getMax()).append('\n');
+
+        for (Map.Entry<String, Double> room : ServerMetrics.getRoomMessageRates().entrySet()) {
+            text.append("chat_room_messages_per_second{room=\"").append(room.getKey()).append("\"} ")
+                    .append(String.format("%.3f", room.getValue())).append('\n');
+        }
+        for (int i = 0; i < STATES.length; i++) {
+            text.append("chat_connections{state=\"").append(STATES[i]).append("\"} ")
+                    .append(ServerMetrics.connections.get(i)).append('\n');
+        }
+        text.append("chat_timeout_evictions ").append(ServerMetrics.timeoutEvictions.sum()).append('\n');
+        text.append("chat_outbound_dropped ").append(ServerMetrics.outboundDropped.sum()).append('\n');
+        text.append("chat_outbound_depth ").append(ServerMetrics.getOutboundDepth()).append('\n');
+        text.append("chat_outbound_max_depth ").append(ServerMetrics.outboundMaxDepth.get()).append('\n');
+        for (ChatServer.Handler connection : ChatServer.Handler.getConnections()) {
+            OutboundQueue queue = connection.getOutboundQueue();
+            String labels = "{connection=\"" + connection.getConnectionId() + "\",room=\""
+                    + (connection.getRoomName() == null ? "" : connection.getRoomName()) + "\",name=\""
+                    + (connection.getDisplayName() == null ? "" : connection.getDisplayName()) + "\"} ";
+            text.append("chat_outbound_queue_depth").append(labels).append(queue.getDepth()).append('\n');
+            text.append("chat_outbound_queue_max_depth").append(labels).append(queue.getMaxDepth()).append('\n');
+            text.append("chat_outbound_queue_dropped").append(labels).append(queue.getDroppedCount()).append('\n');
+        }
+
+        ServerMetrics.appendPool(text, "heap", BufferPool.heapBuffers);
+        ServerMetrics.appendPool(text, "channel", ChannelConnection.getReadBuffers());
+        return text.toString();
+    }
+
+    private static void appendCounters(StringBuilder text, String name, LongAdder[] counters) {
+        for (Map.Entry<String, Long> entry : ServerMetrics.countsByType(counters).entrySet()) {
+            text.append(name).append("{type=\"").append(entry.getKey()).append("\"} ").append(entry.getValue())
+                    .append('\n');
+        }
+    }
+
+    private static void appendPool(StringBuilder text, String name, BufferPool pool) {
+        text.append("chat_buffer_pool_hits{pool=\"").append(name).append("\"} ").append(pool.getHits()).append('\n');
+        text.append("chat_buffer_pool_misses{pool=\"").append(name).append("\"} ").append(pool.getMisses())
+                .append('\n');
+        text.append("chat_buffer_pool_bytes_in_use{pool=\"").append(name).append("\"} ").append(pool.getBytesInUse())
+                .append('\n');
+        text.append("chat_buffer_pool_bytes_pooled{pool=\"").append(name).append("\"} ")
+                .append(pool.getBytesPooled()).append('\n');
+    }
+
+    /**
+     * The counts of the frame types seen so far, by type name
+     */
+    private static Map<String, Long> countsByType(LongAdder[] counters) {
+        TreeMap<String, Long> counts = new TreeMap<>();
+        for (Global.FRAME_TYPE type : Global.FRAME_TYPE.values()) {
+            long count = counters[ServerMetrics.typeIndex(type.getValue())].sum();
+            if (count > 0) {
+                counts.put(type.name(), count);
+            }
+        }
+        if (counters[0].sum() > 0) {
+            counts.put("UNKNOWN", counters[0].sum());
+        }
+        return counts;
+    }
+
+    /**
+     * A value of every open connection's outbound queue, by connection
+     */
+    private static <T> Map<String, T> byConnection(Function<OutboundQueue, T> value) {
+        TreeMap<String, T> values = new TreeMap<>();
+        for (ChatServer.Handler connection : ChatServer.Handler.getConnections()) {
+            String name = String.valueOf(connection.getConnectionId());
+            if (connection.getRoomName() != null) {
+                name += " " + connection.getRoomName() + "/" + connection.getDisplayName();
+            }
+            values.put(name, value.apply(connection.getOutboundQueue()));
+        }
+        return values;
+    }
+
+    private static Map<String, Double> getRoomMessageRates() {
+        TreeMap<String, Double> rates = new TreeMap<>();
+        for (Map.Entry<String, ChatRoomData> room : ChatServer.getChatrooms().entrySet()) {
+            rates.put(room.getKey(), room.getValue().getMessageRate().getRate());
+        }
+        return rates;
+    }
+
+    /**
+     * Reads the metrics for JMX
+     */
+    private static class Bean implements ServerMetricsMXBean {
+
+        @Override
+        public Map<String, Long> getFramesIn() {
+            return ServerMetrics.countsByType(ServerMetrics.framesIn);
+        }
+
+        @Override
+        public Map<String, Long> getFramesOut() {
+            return ServerMetrics.countsByType(ServerMetrics.framesOut);
+        }
+
+        @Override
+        public long getBytesIn() {
+            return ServerMetrics.bytesIn.sum();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return ServerMetrics.bytesOut.sum();
+        }
+
+        @Override
+        public long getFanoutCount() {
+            return ServerMetrics.fanoutLatency.getCount();
+        }
+
+        @Override
+        public double getFanoutMeanNanos() {
+            return ServerMetrics.fanoutLatency.getMean();
+        }
+
+        @Override
+        public long getFanoutP99Nanos() {
+            return ServerMetrics.fanoutLatency.getPercentile(99);
+        }
+
+        @Override
+        public long getFanoutMaxNanos() {
+            return ServerMetrics.fanoutLatency.getMax();
+        }
+
+        @Override
+        public Map<String, Double> getRoomMessageRates() {
+            return ServerMetrics.getRoomMessageRates();
+        }
+
+        @Override
+        public Map<String, Long> getConnections() {
+            TreeMap<String, Long> connections = new TreeMap<>();
+            for (int i = 0; i < STATES.length; i++) {
+                connections.put(STATES[i], ServerMetrics.connections.get(i));
+            }
+            return connections;
+        }
+
+        @Override
+        public long getTimeoutEvictions() {
+            return ServerMetrics.timeoutEvictions.sum();
+        }
+
+        @Override
+        public long getOutboundDropped() {
+            return ServerMetrics.outboundDropped.sum();
+        }
+
+        @Override
+        public long getOutboundDepth() {
+            return ServerMetrics.getOutboundDepth();
+        }
+
+        @Override
+        public int getOutboundMaxDepth() {
+            return ServerMetrics.outboundMaxDepth.get();
+        }
+
+        @Override
+        public void resetOutboundMaxDepth() {
+            ServerMetrics.resetOutboundMaxDepth();
+        }
+
+        @Override
+        public Map<String, Integer> getOutboundQueueDepths() {
+            return ServerMetrics.byConnection(OutboundQueue::getDepth);
+        }
+
+        @Override
+        public Map<String, Integer> getOutboundQueueMaxDepths() {
+            return ServerMetrics.byConnection(OutboundQueue::getMaxDepth);
+        }
+
+        @Override
+        public Map<String, Long> getOutboundQueueDropped() {
+            return ServerMetrics.byConnection(OutboundQueue::getDroppedCount);
+        }
+
+        @Override
+        public long getBufferPoolHits() {
+            return BufferPool.heapBuffers.getHits() + ChannelConnection.getReadBuffers().getHits();
+        }
+
+        @Override
+        public long getBufferPoolMisses() {
+            return BufferPool.heapBuffers.getMisses() + ChannelConnection.getReadBuffers().getMisses();
+        }
+
+        @Override
+        public long getBufferPoolBytesInUse() {
+            return BufferPool.heapBuffers.getBytesInUse() + ChannelConnection.getReadBuffers().getBytesInUse();
+        }
+    }
+
+}
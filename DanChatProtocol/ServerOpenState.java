@@ -1,4 +1,4 @@
-import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ServerOpenState implements ServerState {
     protected ChatServer.Handler clientHandler;
@@ -20,9 +20,12 @@ public class ServerOpenState implements ServerState {
             Global.ERROR_CODE error;
             Global.FRAME_TYPE responseFrameType;
 
-            // Validate room name and display name
-            if (!Global.isAlphanumeric(roomName) || !Global.isAlphanumeric(displayName)) {
+            // Validate room name and display name, the room name also names the room's
+            // log directory
+            if (roomName.isEmpty() || !Global.isAlphanumeric(roomName) || !Global.isAlphanumeric(displayName)) {
                 this.clientHandler.sendErrorFrame(Global.ERROR_CODE.INVALID_DATA_CONTENT);
+                this.clientHandler.closeSocket();
+                return;
             }
 
             if (dataFrame.getType() == Global.FRAME_TYPE.NEW.getValue()) {
@@ -38,14 +41,24 @@ public class ServerOpenState implements ServerState {
             }
 
             // Add the user to the room
-            error = ChatServer.addChatRoomParticipant(roomName, displayName, this.clientHandler.getOutputStream());
+            error = ChatServer.addChatRoomParticipant(roomName, displayName, this.clientHandler);
             if (error.getValue() != Global.ERROR_CODE.NONE.getValue()) {
                 this.clientHandler.sendErrorFrame(error);
                 return;
             }
 
-            // Reply
-            this.clientHandler.sendMessage(true, responseFrameType, Global.ERROR_CODE.NONE, mainData, "");
+            // A client that lost its connection resends the TEXT frames that were not
+            // acknowledged, the room knows which ones it already accepted
+            long clientId = Global.getLongField(dataFrame.getExtendedData(), "cid", -1);
+            ChatRoomData roomData = ChatServer.getChatrooms().get(roomName);
+            if (clientId >= 0 && roomData != null) {
+                this.clientHandler.resumeTextSequence(clientId, roomData.getLastTextSequence(displayName, clientId));
+            }
+
+            // Reply. In a cluster the reply names the node whose sequence numbers the
+            // client will be given.
+            String replyData = ClusterNode.isEnabled() ? Global.addField("", "node", ClusterNode.nodeId) : "";
+            this.clientHandler.sendMessage(true, responseFrameType, Global.ERROR_CODE.NONE, mainData, replyData);
 
             // Change state to JOINED
             this.clientHandler.setRoomName(roomName);
@@ -57,7 +70,7 @@ public class ServerOpenState implements ServerState {
             String roomList = "";
 
             // Get a list of all rooms
-            Hashtable<String, ChatRoomData> chatRooms = ChatServer.getChatrooms();
+            ConcurrentHashMap<String, ChatRoomData> chatRooms = ChatServer.getChatrooms();
 
             for (String key : chatRooms.keySet()) {
                 if (!roomList.equals("")) {
@@ -1,16 +1,36 @@
-import java.util.TimerTask;
+/**
+ * Closes the connection when nothing is received from the server for the
+ * timeout. Any frame from the server counts, not only PONG.
+ */
+public class ServerTimeout extends ScheduledClientTask {
 
-public class ServerTimeout extends TimerTask {
-    private ChatClient chatClient;
+    private long started;
 
     public ServerTimeout(ChatClient chatClient) {
-        this.chatClient = chatClient;
+        super(chatClient);
+    }
+
+    public void start() {
+        this.started = System.currentTimeMillis();
+        this.schedule(ChatClient.serverTimeout);
     }
 
     @Override
     public void run() {
-        System.out.println("Timed out. Closing the socket...");
+        if (this.isCancelled()) {
+            return;
+        }
+
+        // Wait longer if something was received in the meantime
+        long lastActivity = Math.max(this.started, this.chatClient.getLastReceived());
+        long remaining = ChatClient.serverTimeout - (System.currentTimeMillis() - lastActivity);
+        if (remaining > 0) {
+            this.schedule(remaining);
+            return;
+        }
+
+        ChatLogger.warn(() -> "Timed out. Closing the socket...");
         this.chatClient.closeSocket();
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,91 @@
+/**
+ * Finds a piece of text in UTF-8 encoded messages with the Boyer-Moore-Horspool
+ * algorithm. The longer the text searched for, the more bytes of a message are
+ * skipped. UTF-8 never encodes a character as part of another one, so a byte
+ * match is also a character match.
+ */
+public class TextMatcher {
+
+    private byte[] pattern;
+
+    // Whether ASCII letters match in either case
+    private boolean ignoreCase;
+
+    // How far the pattern can move when a byte of the message is the last one
+    // compared
+    private int[] shifts = new int[256];
+
+    public TextMatcher(byte[] pattern) {
+        this(pattern, false);
+    }
+
+    /**
+     * A matcher that can ignore case. The pattern must then be lower case ASCII,
+     * and every byte of a character beyond ASCII in the message matches any byte
+     * of the pattern, because such a character may lower case to ASCII. A match
+     * is then only a candidate to be checked.
+     *
+     * @param pattern
+     * @param ignoreCase
+     */
+    public TextMatcher(byte[] pattern, boolean ignoreCase) {
+        this.pattern = pattern;
+        this.ignoreCase = ignoreCase;
+        for (int i = 0; i < this.shifts.length; i++) {
+            this.shifts[i] = pattern.length;
+        }
+        for (int i = 0; i < pattern.length - 1; i++) {
+            this.shifts[pattern[i] & 0xff] = pattern.length - 1 - i;
+            if (ignoreCase && pattern[i] >= 'a' && pattern[i] <= 'z') {
+                this.shifts[pattern[i] - 'a' + 'A'] = pattern.length - 1 - i;
+            }
+        }
+        if (ignoreCase && pattern.length > 1) {
+            for (int i = 0x80; i < this.shifts.length; i++) {
+                this.shifts[i] = 1;
+            }
+        }
+    }
+
+    public boolean matches(byte[] text) {
+        return this.indexIn(text) >= 0;
+    }
+
+    /**
+     * The index of the first occurrence of the pattern in the text
+     *
+     * @param text
+     * @return the index, or -1 if the text does not contain the pattern
+     */
+    public int indexIn(byte[] text) {
+        int last = this.pattern.length - 1;
+        if (last < 0) {
+            return 0;
+        }
+
+        int position = 0;
+        while (position <= text.length - this.pattern.length) {
+            // Compare from the end of the pattern
+            int i = last;
+            while (this.equal(text[position + i], this.pattern[i])) {
+                if (i == 0) {
+                    return position;
+                }
+                i--;
+            }
+            position += this.shifts[text[position + last] & 0xff];
+        }
+        return -1;
+    }
+
+    private boolean equal(byte textByte, byte patternByte) {
+        if (textByte == patternByte) {
+            return true;
+        }
+        if (!this.ignoreCase) {
+            return false;
+        }
+        return textByte < 0 || textByte >= 'A' && textByte <= 'Z' && textByte - 'A' + 'a' == patternByte;
+    }
+
+}
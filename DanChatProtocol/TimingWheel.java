@@ -0,0 +1,176 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A hashed timing wheel that runs the timeouts of many connections on one
+ * thread. Time advances in ticks, and each slot of the wheel holds the timeouts
+ * due at the ticks that map to it. A connection records its activity by writing
+ * the current tick. Nothing is rescheduled or allocated then. When a timeout's
+ * slot comes up, the wheel checks the last activity. The timeout fires if the
+ * connection has been idle for the whole duration. Otherwise it moves to the
+ * slot of its new deadline. The actions of expired timeouts run on a small
+ * fixed pool, so an action that blocks does not hold up the wheel. The actions
+ * must not block for long, or the other expired actions wait.
+ */
+public class TimingWheel {
+
+    // The threads of a wheel that run the actions of expired timeouts
+    public static final int actionThreads = Integer.getInteger("chat.timeout.actionThreads", 4);
+
+    /**
+     * The timeout of one connection, created once and restarted as often as needed
+     */
+    public class Timeout {
+        private Runnable action;
+
+        // The duration in ticks
+        private long ticks;
+
+        // The tick of the last activity
+        private volatile long lastActivity;
+
+        private volatile boolean active;
+
+        // Whether the timeout is in a slot or waiting to be put into one
+        private AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private Timeout(long ticks, Runnable action) {
+            this.ticks = ticks;
+            this.action = action;
+        }
+
+        /**
+         * Start counting down from now
+         */
+        public void start() {
+            this.lastActivity = TimingWheel.this.currentTick;
+            this.active = true;
+            TimingWheel.this.schedule(this);
+        }
+
+        public void stop() {
+            this.active = false;
+        }
+
+        /**
+         * Restart the count down. A single write, safe to call for every frame.
+         */
+        public void touch() {
+            this.lastActivity = TimingWheel.this.currentTick;
+        }
+    }
+
+    private long tickDuration;
+
+    private ArrayDeque<Timeout>[] slots;
+
+    private volatile long currentTick;
+
+    // Timeouts that were started and are not in a slot yet
+    private ConcurrentLinkedQueue<Timeout> started = new ConcurrentLinkedQueue<>();
+
+    // Runs the actions of the expired timeouts
+    private ExecutorService actions;
+
+    /**
+     * Create a wheel and start its thread
+     *
+     * @param name         the name of the thread
+     * @param tickDuration milliseconds per tick, the precision of the timeouts
+     * @param slotCount    a power of two, the wheel turns once every slotCount
+     *                     ticks
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public TimingWheel(String name, long tickDuration, int slotCount) {
+        this.tickDuration = tickDuration;
+        this.slots = new ArrayDeque[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            this.slots[i] = new ArrayDeque<>();
+        }
+
+        this.actions = Executors.newFixedThreadPool(TimingWheel.actionThreads, action -> {
+            Thread thread = new Thread(action, name + "-action");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Create a timeout that is not started yet
+     *
+     * @param duration milliseconds of inactivity before the action runs
+     * @param action   runs on a thread of the wheel's action pool
+     * @return
+     */
+    public Timeout newTimeout(long duration, Runnable action) {
+        return new Timeout(Math.max(1, (duration + this.tickDuration - 1) / this.tickDuration), action);
+    }
+
+    private void schedule(Timeout timeout) {
+        if (timeout.scheduled.compareAndSet(false, true)) {
+            this.started.add(timeout);
+        }
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        while (true) {
+            // Wait for the next tick, measured from the start so the wheel does not drift
+            long nextTick = start + (this.currentTick + 1) * this.tickDuration * 1000000;
+            long wait = nextTick - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            this.currentTick++;
+
+            Timeout timeout;
+            while ((timeout = this.started.poll()) != null) {
+                this.place(timeout);
+            }
+
+            // Expire or move the timeouts of this tick's slot
+            ArrayDeque<Timeout> slot = this.slots[(int) (this.currentTick & (this.slots.length - 1))];
+            for (int remaining = slot.size(); remaining > 0; remaining--) {
+                timeout = slot.poll();
+                if (!timeout.active) {
+                    timeout.scheduled.set(false);
+                    // It may have been started again in between
+                    if (timeout.active) {
+                        this.schedule(timeout);
+                    }
+                } else if (timeout.lastActivity + timeout.ticks <= this.currentTick) {
+                    timeout.scheduled.set(false);
+                    Runnable action = timeout.action;
+                    this.actions.execute(() -> {
+                        try {
+                            action.run();
+                        } catch (Exception e) {
+                            ChatLogger.warn(() -> e.toString());
+                        }
+                    });
+                } else {
+                    this.place(timeout);
+                }
+            }
+        }
+    }
+
+    private void place(Timeout timeout) {
+        // A slot is visited at least once per turn, later deadlines are moved again
+        // when they come up
+        long deadline = Math.max(timeout.lastActivity + timeout.ticks, this.currentTick + 1);
+        this.slots[(int) (deadline & (this.slots.length - 1))].add(timeout);
+    }
+
+}
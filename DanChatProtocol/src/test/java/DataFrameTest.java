@@ -0,0 +1,169 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Encoding and parsing frames in the version 1 and the compact layout
+ */
+public class DataFrameTest {
+
+    private static DataFrame parse(byte[] encoded) {
+        DataFrame frame = new DataFrame();
+        assertTrue(frame.parseFromByteArray(encoded));
+        return frame;
+    }
+
+    private static void assertSameFrame(DataFrame expected, DataFrame actual) {
+        assertEquals(expected.getEnd(), actual.getEnd());
+        assertEquals(expected.getRsv1(), actual.getRsv1());
+        assertEquals(expected.getRsv2(), actual.getRsv2());
+        assertEquals(expected.getRsv3(), actual.getRsv3());
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getErrorCode(), actual.getErrorCode());
+        assertArrayEquals(expected.getMainDataBytes(), actual.getMainDataBytes());
+        assertArrayEquals(expected.getExtendedDataBytes(), actual.getExtendedDataBytes());
+    }
+
+    @Test
+    public void version1RoundTrip() {
+        DataFrame frame = new DataFrame(true, true, false, true, 1, Global.FRAME_TYPE.TEXT.getValue(),
+                Global.ERROR_CODE.NONE.getValue(), "héllo", "seq=3;ts=12");
+        byte[] encoded = frame.getByteArray();
+
+        assertFalse(frame.isCompact());
+        assertEquals(DataFrame.HEADER_LENGTH + 6 + 11, encoded.length);
+        assertSameFrame(frame, parse(encoded));
+        assertEquals("héllo", parse(encoded).getMainData());
+    }
+
+    @Test
+    public void compactRoundTrip() {
+        DataFrame frame = new DataFrame(false, false, true, false, DataFrame.COMPACT_VERSION,
+                Global.FRAME_TYPE.SEARCH.getValue(), Global.ERROR_CODE.CORRUPT_FRAME.getValue(), "hello", "from=0");
+        byte[] encoded = frame.getByteArray();
+
+        assertTrue(frame.isCompact());
+        assertEquals(3 + 1 + 5 + 1 + 6, encoded.length);
+        assertEquals(encoded.length, frame.getEncodedLength());
+        assertSameFrame(frame, parse(encoded));
+    }
+
+    @Test
+    public void compactEmptyFrameHasFiveByteHeader() {
+        DataFrame frame = new DataFrame(true, false, false, false, DataFrame.COMPACT_VERSION,
+                Global.FRAME_TYPE.PING.getValue(), Global.ERROR_CODE.NONE.getValue(), "", "");
+        assertEquals(5, frame.getByteArray().length);
+        assertSameFrame(frame, parse(frame.getByteArray()));
+    }
+
+    @Test
+    public void openFramesKeepTheVersion1Layout() {
+        DataFrame frame = new DataFrame(true, false, false, false, DataFrame.COMPACT_VERSION,
+                Global.FRAME_TYPE.OPEN.getValue(), Global.ERROR_CODE.NONE.getValue(), "secret", "");
+        byte[] encoded = frame.getByteArray();
+
+        assertFalse(frame.isCompact());
+        assertEquals(DataFrame.HEADER_LENGTH + 6, encoded.length);
+        assertEquals(DataFrame.COMPACT_VERSION, parse(encoded).getVersion());
+    }
+
+    @Test
+    public void withVersionChangesTheLayout() {
+        DataFrame frame = new DataFrame(true, false, false, false, 1, Global.FRAME_TYPE.TEXT.getValue(),
+                Global.ERROR_CODE.NONE.getValue(), "hello", "");
+        DataFrame compact = frame.withVersion(DataFrame.COMPACT_VERSION);
+
+        assertTrue(compact.isCompact());
+        assertSameFrame(compact, parse(compact.getByteArray()));
+        assertArrayEquals(frame.getMainDataBytes(), parse(compact.getByteArray()).getMainDataBytes());
+    }
+
+    @Test
+    public void parsesFromTheBufferPositionToItsLimit() {
+        DataFrame frame = new DataFrame(true, false, false, false, DataFrame.COMPACT_VERSION,
+                Global.FRAME_TYPE.TEXT.getValue(), Global.ERROR_CODE.NONE.getValue(), "hello", "");
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put((byte) 7).put((byte) 7);
+        int start = buffer.position();
+        frame.writeTo(buffer);
+        buffer.limit(buffer.position()).position(start);
+
+        DataFrame parsed = new DataFrame();
+        assertTrue(parsed.parseFromByteBuffer(buffer));
+        assertSameFrame(frame, parsed);
+        assertEquals(buffer.limit(), buffer.position());
+    }
+
+    @Test
+    public void varintLengthsAtTheirBounds() {
+        // A varint holds 7 bits per byte
+        int[][] lengths = { { 0, 1 }, { 127, 1 }, { 128, 2 }, { 16383, 2 }, { 16384, 3 }, { 2097151, 3 },
+                { 2097152, 4 } };
+        for (int[] length : lengths) {
+            byte[] data = new byte[length[0]];
+            Arrays.fill(data, (byte) 'a');
+            DataFrame frame = new DataFrame(true, false, false, false, DataFrame.COMPACT_VERSION,
+                    Global.FRAME_TYPE.TEXT.getValue(), Global.ERROR_CODE.NONE.getValue(), data, new byte[0]);
+            byte[] encoded = frame.getByteArray();
+
+            assertEquals(3 + length[1] + length[0] + 1, encoded.length, "main data of " + length[0] + " bytes");
+            assertArrayEquals(data, parse(encoded).getMainDataBytes());
+        }
+    }
+
+    @Test
+    public void refusesAVarintLongerThanFiveBytes() {
+        byte[] encoded = { (byte) 0x81, 1, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0, 0 };
+        assertFalse(new DataFrame().parseFromByteArray(encoded));
+    }
+
+    @Test
+    public void refusesANegativeVarintLength() {
+        // Five bytes that decode to a length with the sign bit set
+        byte[] encoded = { (byte) 0x81, 1, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f, 0 };
+        assertFalse(new DataFrame().parseFromByteArray(encoded));
+    }
+
+    @Test
+    public void refusesLengthsPastTheEndOfTheFrame() {
+        DataFrame compact = new DataFrame(true, false, false, false, DataFrame.COMPACT_VERSION,
+                Global.FRAME_TYPE.TEXT.getValue(), Global.ERROR_CODE.NONE.getValue(), "hello", "seq=1");
+        byte[] encoded = compact.getByteArray();
+        for (int length = 1; length < encoded.length; length++) {
+            assertFalse(new DataFrame().parseFromByteArray(Arrays.copyOf(encoded, length)), "cut at " + length);
+        }
+
+        DataFrame version1 = new DataFrame(true, false, false, false, 1, Global.FRAME_TYPE.TEXT.getValue(),
+                Global.ERROR_CODE.NONE.getValue(), "hello", "seq=1");
+        encoded = version1.getByteArray();
+        for (int length = 1; length < encoded.length; length++) {
+            assertFalse(new DataFrame().parseFromByteArray(Arrays.copyOf(encoded, length)), "cut at " + length);
+        }
+    }
+
+    @Test
+    public void refusesANegativeVersion1Length() {
+        ByteBuffer buffer = ByteBuffer.allocate(DataFrame.HEADER_LENGTH);
+        buffer.put(new byte[] { 1, 0, 0, 0 }).putInt(1).putInt(Global.FRAME_TYPE.TEXT.getValue()).putInt(0)
+                .putInt(-1).putInt(0);
+        assertFalse(new DataFrame().parseFromByteArray(buffer.array()));
+    }
+
+    @Test
+    public void keepsUtf8Bytes() {
+        byte[] data = "ünï 中文 😀".getBytes(StandardCharsets.UTF_8);
+        DataFrame frame = new DataFrame(true, false, false, false, DataFrame.COMPACT_VERSION,
+                Global.FRAME_TYPE.TEXT.getValue(), Global.ERROR_CODE.NONE.getValue(), data, new byte[0]);
+        assertArrayEquals(data, parse(frame.getByteArray()).getMainDataBytes());
+        assertEquals(new String(data, StandardCharsets.UTF_8), parse(frame.getByteArray()).getMainData());
+    }
+
+}
@@ -0,0 +1,105 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Splitting messages into fragments and reassembling them within the size
+ * limit
+ */
+public class MessageAssemblerTest {
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) i;
+        }
+        return message;
+    }
+
+    @Test
+    public void smallMessageIsNotSplit() {
+        byte[] message = message(MessageAssembler.fragmentSize);
+        ArrayList<byte[]> fragments = MessageAssembler.split(message);
+        assertEquals(1, fragments.size());
+        assertSame(message, fragments.get(0));
+    }
+
+    @Test
+    public void splitsIntoFragmentsOfAtMostFragmentSize() {
+        byte[] message = message(2 * MessageAssembler.fragmentSize + 1);
+        ArrayList<byte[]> fragments = MessageAssembler.split(message);
+
+        assertEquals(3, fragments.size());
+        assertEquals(MessageAssembler.fragmentSize, fragments.get(0).length);
+        assertEquals(MessageAssembler.fragmentSize, fragments.get(1).length);
+        assertEquals(1, fragments.get(2).length);
+
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        fragments.forEach(joined::writeBytes);
+        assertArrayEquals(message, joined.toByteArray());
+    }
+
+    @Test
+    public void reassemblesTheFragments() {
+        byte[] message = message(3 * MessageAssembler.fragmentSize + 100);
+        MessageAssembler assembler = new MessageAssembler();
+        assertTrue(assembler.isEmpty());
+
+        for (byte[] fragment : MessageAssembler.split(message)) {
+            assertTrue(assembler.append(fragment));
+        }
+        assertEquals(4, assembler.getParts());
+        assertFalse(assembler.isEmpty());
+
+        assertArrayEquals(message, assembler.finish());
+        assertTrue(assembler.isEmpty());
+        assertEquals(0, assembler.getParts());
+    }
+
+    @Test
+    public void acceptsAMessageOfExactlyTheLargestSize() {
+        MessageAssembler assembler = new MessageAssembler();
+        for (byte[] fragment : MessageAssembler.split(message(MessageAssembler.maxMessageSize))) {
+            assertTrue(assembler.append(fragment));
+        }
+        assertEquals(MessageAssembler.maxMessageSize, assembler.finish().length);
+    }
+
+    @Test
+    public void refusesAMessageLargerThanTheLargestSize() {
+        MessageAssembler assembler = new MessageAssembler();
+        for (byte[] fragment : MessageAssembler.split(message(MessageAssembler.maxMessageSize))) {
+            assertTrue(assembler.append(fragment));
+        }
+        assertFalse(assembler.append(new byte[1]));
+
+        // A single fragment over the limit is refused too
+        MessageAssembler other = new MessageAssembler();
+        assertTrue(other.append(new byte[10]));
+        assertFalse(other.append(new byte[MessageAssembler.maxMessageSize - 9]));
+        assertEquals(1, other.getParts());
+    }
+
+    @Test
+    public void startsOverAfterAReset() {
+        MessageAssembler assembler = new MessageAssembler();
+        assertTrue(assembler.append(message(MessageAssembler.maxMessageSize)));
+        assertFalse(assembler.append(new byte[1]));
+        assembler.reset();
+
+        assertTrue(assembler.isEmpty());
+        byte[] message = message(100);
+        assertTrue(assembler.append(Arrays.copyOf(message, 40)));
+        assertTrue(assembler.append(Arrays.copyOfRange(message, 40, 100)));
+        assertArrayEquals(message, assembler.finish());
+    }
+
+}
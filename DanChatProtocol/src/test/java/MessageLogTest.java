@@ -0,0 +1,182 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Segment rollover and reopening of a room's message log. The build sets
+ * chat.log.dir, and segments of 1024 bytes and 16 messages.
+ */
+public class MessageLogTest {
+
+    @BeforeAll
+    public static void checkSettings() {
+        assertTrue(MessageLog.isEnabled(), "chat.log.dir is not set");
+    }
+
+    // Every test gets a new room, the logs of earlier runs stay on disk
+    private static String newRoom() {
+        return "room" + System.nanoTime();
+    }
+
+    private static byte[] message(int i, int length) {
+        byte[] message = new byte[length];
+        Arrays.fill(message, (byte) ('a' + i % 26));
+        return message;
+    }
+
+    private static int segmentCount(String roomName) {
+        return new File(MessageLog.directory, roomName).listFiles((dir, name) -> name.endsWith(".log")).length;
+    }
+
+    @Test
+    public void rollsOverAfterTheMostMessagesOfASegment() throws IOException {
+        String room = newRoom();
+        MessageLog log = new MessageLog(room);
+        int count = 3 * MessageLog.segmentMessages + 1;
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, log.append(i, message(i, 8)));
+        }
+
+        assertEquals(4, segmentCount(room));
+        assertEquals(count, log.getNextSequence());
+        ArrayList<MessageHistory.Entry> entries = log.read(0, count);
+        assertEquals(count, entries.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, entries.get(i).getSequence());
+            assertEquals(i, entries.get(i).getTimestamp());
+            assertArrayEquals(message(i, 8), entries.get(i).getData());
+        }
+    }
+
+    @Test
+    public void rollsOverWhenASegmentIsFull() throws IOException {
+        String room = newRoom();
+        MessageLog log = new MessageLog(room);
+
+        // With its header a record takes 316 bytes, three fit into a segment
+        for (int i = 0; i < 7; i++) {
+            log.append(i, message(i, 300));
+        }
+        assertEquals(3, segmentCount(room));
+
+        // A message larger than a segment gets a segment of its own
+        log.append(7, message(7, 3 * MessageLog.segmentSize));
+        log.append(8, message(8, 10));
+        assertEquals(5, segmentCount(room));
+
+        ArrayList<MessageHistory.Entry> entries = log.read(0, 100);
+        assertEquals(9, entries.size());
+        assertArrayEquals(message(7, 3 * MessageLog.segmentSize), entries.get(7).getData());
+        assertArrayEquals(message(8, 10), entries.get(8).getData());
+    }
+
+    @Test
+    public void reopensWithTheSameMessages() throws IOException {
+        String room = newRoom();
+        MessageLog log = new MessageLog(room);
+        int count = 2 * MessageLog.segmentMessages + 5;
+        for (int i = 0; i < count; i++) {
+            log.append(1000 + i, ("message " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        log.force();
+
+        MessageLog reopened = new MessageLog(room);
+        assertEquals(0, reopened.getFirstSequence());
+        assertEquals(count, reopened.getNextSequence());
+        ArrayList<MessageHistory.Entry> entries = reopened.read(0, count);
+        assertEquals(count, entries.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("message " + i, entries.get(i).getText());
+            assertEquals(1000 + i, entries.get(i).getTimestamp());
+        }
+
+        // Appending goes on from the last message
+        assertEquals(count, reopened.append(0, "next".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("next", reopened.read(count, 1).get(0).getText());
+    }
+
+    /**
+     * Overwrite bytes of the last segment's data file, as if the appends had not
+     * all reached the disk
+     */
+    private static void damage(String roomName, long baseSequence, long offset, byte[] bytes) throws IOException {
+        File file = new File(new File(MessageLog.directory, roomName), String.format("%020d", baseSequence) + ".log");
+        try (RandomAccessFile data = new RandomAccessFile(file, "rw")) {
+            data.seek(offset);
+            data.write(bytes);
+        }
+    }
+
+    @Test
+    public void cutsTheLogAtATornRecord() throws IOException {
+        String room = newRoom();
+        MessageLog log = new MessageLog(room);
+        for (int i = 0; i < 5; i++) {
+            log.append(i, message(i, 20));
+        }
+        log.force();
+
+        // Change a byte of the data of the fourth record, 36 bytes each
+        damage(room, 0, 3 * 36 + 20, new byte[] { '!' });
+
+        MessageLog reopened = new MessageLog(room);
+        assertEquals(3, reopened.getNextSequence());
+        assertEquals(3, reopened.read(0, 10).size());
+        assertEquals(3, reopened.append(3, message(3, 20)));
+        assertArrayEquals(message(3, 20), reopened.read(3, 1).get(0).getData());
+        assertEquals(4, new MessageLog(room).getNextSequence());
+    }
+
+    @Test
+    public void cutsTheLogAtARecordThatWasNotWritten() throws IOException {
+        String room = newRoom();
+        MessageLog log = new MessageLog(room);
+        for (int i = 0; i < 3; i++) {
+            log.append(i, message(i, 20));
+        }
+        log.force();
+
+        // The index reached the disk but the last record did not
+        damage(room, 0, 2 * 36, new byte[36]);
+
+        assertEquals(2, new MessageLog(room).getNextSequence());
+    }
+
+    @Test
+    public void readsAPageFromAnySequence() throws IOException {
+        MessageLog log = new MessageLog(newRoom());
+        int count = 3 * MessageLog.segmentMessages;
+        for (int i = 0; i < count; i++) {
+            log.append(i, message(i, 8));
+        }
+
+        // A page that starts in one segment and ends in the next
+        long from = MessageLog.segmentMessages - 3;
+        ArrayList<MessageHistory.Entry> page = log.read(from, 10);
+        assertEquals(10, page.size());
+        for (int i = 0; i < page.size(); i++) {
+            assertEquals(from + i, page.get(i).getSequence());
+        }
+        assertEquals(2, log.read(count - 2, 10).size());
+        assertTrue(log.read(count, 10).isEmpty());
+    }
+
+    @Test
+    public void refusesRoomNamesOutsideTheLogDirectory() {
+        assertThrows(IOException.class, () -> new MessageLog("../outside"));
+        assertThrows(IOException.class, () -> new MessageLog(""));
+        assertThrows(IOException.class, () -> new MessageLog("a/../../b"));
+    }
+
+}
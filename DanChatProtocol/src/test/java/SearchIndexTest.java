@@ -0,0 +1,92 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Word lookups in the index, and the scan of rooms without one finding the
+ * same messages
+ */
+public class SearchIndexTest {
+
+    private static final String[] MESSAGES = { "Hello World", "hello there", "WORLD news", "Über alles",
+            "über cool", "INFO: chatroom ready", "x-ray vision", "info desk" };
+
+    private static SearchIndex index() {
+        SearchIndex index = new SearchIndex();
+        for (int i = 0; i < MESSAGES.length; i++) {
+            index.add(i, MESSAGES[i]);
+        }
+        return index;
+    }
+
+    private static long[] scan(String query) {
+        SearchIndex.Query parsed = new SearchIndex.Query(query);
+        List<Long> sequences = new ArrayList<>();
+        for (int i = 0; i < MESSAGES.length; i++) {
+            if (parsed.matches(MESSAGES[i].getBytes(StandardCharsets.UTF_8))) {
+                sequences.add((long) i);
+            }
+        }
+        return sequences.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    @Test
+    public void findsWholeWordsInAnyCase() {
+        assertArrayEquals(new long[] { 0, 1 }, index().search("HELLO", 0, 10));
+        assertArrayEquals(new long[] { 0 }, index().search("hello world", 0, 10));
+        assertArrayEquals(new long[] { 3, 4 }, index().search("über", 0, 10));
+        assertArrayEquals(new long[0], index().search("hell", 0, 10));
+    }
+
+    @Test
+    public void prefixMatchesEveryWordStartingWithIt() {
+        assertArrayEquals(new long[] { 0, 1 }, index().search("hel*", 0, 10));
+        assertArrayEquals(new long[] { 5 }, index().search("chat*", 0, 10));
+    }
+
+    @Test
+    public void startsFromASequenceAndStopsAtTheLimit() {
+        assertArrayEquals(new long[] { 2 }, index().search("world", 1, 10));
+        assertArrayEquals(new long[] { 0 }, index().search("world", 0, 1));
+    }
+
+    @Test
+    public void forgetsMessagesBeforeTheHistory() {
+        SearchIndex index = index();
+        index.forgetBefore(1);
+        assertArrayEquals(new long[] { 1 }, index.search("hello", 0, 10));
+    }
+
+    @Test
+    public void scanFindsTheSameMessages() {
+        String[] queries = { "hello", "HELLO world", "wor*", "über", "ÜBER*", "x ray", "info", "i*", "nothing",
+                "  " };
+        for (String query : queries) {
+            assertArrayEquals(index().search(query, 0, 10), scan(query), query);
+        }
+    }
+
+    @Test
+    public void doesNotDependOnTheDefaultLocale() {
+        Locale locale = Locale.getDefault();
+        try {
+            // In Turkish, upper case I lower cases to a dotless i
+            Locale.setDefault(new Locale("tr", "TR"));
+            assertEquals(List.of("info", "chatroom", "ready"), SearchIndex.tokenize("INFO: chatroom ready"));
+            assertArrayEquals(new long[] { 5, 7 }, index().search("INFO", 0, 10));
+            assertTrue(new SearchIndex.Query("info").matches("INFO".getBytes(StandardCharsets.UTF_8)));
+            assertFalse(new SearchIndex.Query("info").matches("desk".getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+}
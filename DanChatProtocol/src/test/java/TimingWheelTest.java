@@ -0,0 +1,114 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Expiry and rescheduling of the timeouts of a timing wheel
+ */
+public class TimingWheelTest {
+
+    private static final long TICK = 10;
+
+    // One turn of the wheel takes 80 milliseconds
+    private TimingWheel wheel = new TimingWheel("test-wheel", TICK, 8);
+
+    @Test
+    public void expiresAfterItsDuration() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = this.wheel.newTimeout(50, fired::countDown);
+
+        long start = System.nanoTime();
+        timeout.start();
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed >= 50 - TICK, "fired after " + elapsed + " ms");
+    }
+
+    @Test
+    public void expiresAfterSeveralTurnsOfTheWheel() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = this.wheel.newTimeout(300, fired::countDown);
+
+        long start = System.nanoTime();
+        timeout.start();
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed >= 300 - TICK, "fired after " + elapsed + " ms");
+    }
+
+    @Test
+    public void touchPostponesTheExpiry() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = this.wheel.newTimeout(100, fired::countDown);
+        timeout.start();
+
+        // Keep it active for several of its durations
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(400);
+        while (System.nanoTime() < end) {
+            timeout.touch();
+            assertEquals(1, fired.getCount());
+            Thread.sleep(20);
+        }
+
+        long idleSince = System.nanoTime();
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - idleSince);
+        assertTrue(idle >= 100 - 2 * TICK - 20, "fired after " + idle + " ms of inactivity");
+    }
+
+    @Test
+    public void stoppedTimeoutDoesNotExpire() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = this.wheel.newTimeout(50, fired::countDown);
+        timeout.start();
+        timeout.stop();
+
+        assertFalse(fired.await(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void restartedTimeoutExpiresOnce() throws InterruptedException {
+        AtomicInteger count = new AtomicInteger();
+        CountDownLatch fired = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = this.wheel.newTimeout(50, () -> {
+            count.incrementAndGet();
+            fired.countDown();
+        });
+        timeout.start();
+        timeout.stop();
+        timeout.start();
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void blockedActionDoesNotHoldUpOtherTimeouts() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fired = new CountDownLatch(1);
+        this.wheel.newTimeout(20, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }).start();
+        this.wheel.newTimeout(60, fired::countDown).start();
+
+        try {
+            assertTrue(fired.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+}
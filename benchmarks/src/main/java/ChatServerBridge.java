@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import chatbench.ChatServerAccess;
+
+/**
+ * Gives the benchmarks in the chatbench package access to the server classes
+ * in the default package
+ */
+public class ChatServerBridge implements ChatServerAccess {
+
+    /**
+     * A client connected to a server handler over the loopback interface
+     */
+    private static class Connection {
+        private Socket socket;
+        private ChatServer.Handler handler;
+    }
+
+    @Override
+    public Object createFrame(String type, String mainData, String extendedData) {
+        return this.createFrame(ChatServer.serverVersion, type, mainData, extendedData);
+    }
+
+    @Override
+    public Object createFrame(int version, String type, String mainData, String extendedData) {
+        return new DataFrame(true, false, false, false, version, Global.FRAME_TYPE.valueOf(type).getValue(),
+                Global.ERROR_CODE.NONE.getValue(), mainData, extendedData);
+    }
+
+    @Override
+    public byte[] encode(Object frame) {
+        return ((DataFrame) frame).getByteArray();
+    }
+
+    @Override
+    public Object parse(byte[] encodedFrame) {
+        DataFrame frame = new DataFrame();
+        return frame.parseFromByteArray(encodedFrame) ? frame : null;
+    }
+
+    @Override
+    public String getMainData(Object frame) {
+        return ((DataFrame) frame).getMainData();
+    }
+
+    @Override
+    public Object createRoom(String roomName) {
+        ChatServer.getChatrooms().remove(roomName);
+        ChatServer.createChatRoom(roomName);
+        return ChatServer.getChatrooms().get(roomName);
+    }
+
+    @Override
+    public void addMessage(Object room, String text) {
+        ((ChatRoomData) room).addMessage(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Object joinQueued(String roomName, String displayName) {
+        ChatServer.Handler handler = new ChatServer.Handler((Socket) null);
+        // Claim the queue as if a writer were draining it, so no writer is started
+        handler.getOutboundQueue().startDraining();
+        this.join(handler, roomName, displayName);
+        return handler;
+    }
+
+    @Override
+    public Object getParticipantSnapshot(Object room) {
+        return ((ChatRoomData) room).getParticipantSnapshot();
+    }
+
+    @Override
+    public void broadcast(Object sender, Object frame) {
+        ((ChatServer.Handler) sender).sendFrameToAllChatmates((DataFrame) frame);
+    }
+
+    @Override
+    public int drain(Object room) {
+        int count = 0;
+        for (ChatServer.Handler participant : ((ChatRoomData) room).getParticipantSnapshot()) {
+            while (participant.getOutboundQueue().poll() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Object connect(String roomName, String displayName) throws IOException {
+        Connection connection = new Connection();
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            connection.socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+            connection.handler = new ChatServer.Handler(listener.accept());
+        }
+
+        // The handler opens its streams when it starts
+        startDaemon(connection.handler, "benchmark-handler");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (connection.handler.getOutputStream() == null) {
+            if (System.nanoTime() > deadline) {
+                connection.socket.close();
+                throw new IOException("The handler did not open its streams");
+            }
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+
+        // Read whatever the server sends
+        InputStream in = connection.socket.getInputStream();
+        startDaemon(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                while (in.read(buffer) >= 0) {
+                }
+            } catch (IOException e) {
+                // The connection was closed
+            }
+        }, "benchmark-reader");
+
+        this.join(connection.handler, roomName, displayName);
+        return connection;
+    }
+
+    @Override
+    public void handle(Object connection, Object frame) {
+        ChatServer.Handler handler = ((Connection) connection).handler;
+        handler.getJoinedState().handleDataFrame((DataFrame) frame);
+        // The server sends the replies at the end of each batch of received frames
+        handler.flushOutput();
+    }
+
+    @Override
+    public void disconnect(Object connection) throws IOException {
+        ((Connection) connection).socket.close();
+    }
+
+    @Override
+    public Object createEntries(String[] texts) {
+        MessageHistory.Entry[] entries = new MessageHistory.Entry[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            entries[i] = new MessageHistory.Entry(i, 0, texts[i].getBytes(StandardCharsets.UTF_8));
+        }
+        return entries;
+    }
+
+    @Override
+    public Object createMatcher(String text) {
+        return new SearchIndex.Query(text);
+    }
+
+    @Override
+    public int scan(Object entries, Object matcher, int limit, boolean parallel) {
+        return ChatRoomData.scan((MessageHistory.Entry[]) entries, (SearchIndex.Query) matcher, limit, parallel).length;
+    }
+
+    private void join(ChatServer.Handler handler, String roomName, String displayName) {
+        if (ChatServer.addChatRoomParticipant(roomName, displayName, handler) != Global.ERROR_CODE.NONE) {
+            throw new IllegalStateException("Cannot join " + roomName + " as " + displayName);
+        }
+        handler.setRoomName(roomName);
+        handler.setDisplayName(displayName);
+    }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+}
@@ -0,0 +1,65 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The sender's cost of broadcasting a message to rooms of different sizes: one
+ * encoding plus an outbound queue offer per chatmate. The frames are taken off
+ * the queues again instead of being written to sockets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({ "2", "10", "100", "1000" })
+    public int participants;
+
+    private ChatServerAccess server;
+
+    private Object room;
+
+    private Object sender;
+
+    private Object frame;
+
+    @Setup
+    public void setUp() {
+        this.server = ChatServerAccess.get();
+        this.room = this.server.createRoom("benchmark");
+        for (int i = 0; i < this.participants; i++) {
+            Object participant = this.server.joinQueued("benchmark", "user" + i);
+            if (i == 0) {
+                this.sender = participant;
+            }
+        }
+        this.frame = this.server.createFrame("TEXT", Messages.text(1), "seq=123456");
+    }
+
+    @Benchmark
+    public Object participantSnapshot() {
+        return this.server.getParticipantSnapshot(this.room);
+    }
+
+    @Benchmark
+    public int broadcast() {
+        this.server.broadcast(this.sender, this.frame);
+        return this.server.drain(this.room);
+    }
+
+}
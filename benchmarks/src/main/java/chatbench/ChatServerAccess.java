@@ -0,0 +1,117 @@
+package chatbench;
+
+import java.io.IOException;
+
+/**
+ * The benchmarks' view of the chat server. The server classes are in the
+ * default package, which a named package cannot import, and JMH only runs
+ * benchmarks in named packages. ChatServerBridge in the default package
+ * implements this interface, so the benchmarks call the server through one
+ * interface call per operation. The server objects are passed around as Object.
+ */
+public interface ChatServerAccess {
+
+    static ChatServerAccess get() {
+        try {
+            return (ChatServerAccess) Class.forName("ChatServerBridge").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("ChatServerBridge is not on the class path", e);
+        }
+    }
+
+    /**
+     * Create a frame
+     *
+     * @param type         the name of a Global.FRAME_TYPE
+     * @param mainData
+     * @param extendedData
+     * @return the DataFrame
+     */
+    Object createFrame(String type, String mainData, String extendedData);
+
+    /**
+     * Create a frame of a protocol version, which decides its layout on the wire
+     */
+    Object createFrame(int version, String type, String mainData, String extendedData);
+
+    /**
+     * Encode a frame without the length prefix, as DataFrame.getByteArray does
+     */
+    byte[] encode(Object frame);
+
+    /**
+     * Parse a frame encoded by encode
+     *
+     * @return the DataFrame, or null if the bytes are not a frame
+     */
+    Object parse(byte[] encodedFrame);
+
+    String getMainData(Object frame);
+
+    /**
+     * Create an empty chatroom, replacing a room of the same name
+     *
+     * @return the ChatRoomData
+     */
+    Object createRoom(String roomName);
+
+    void addMessage(Object room, String text);
+
+    /**
+     * Add a participant whose broadcast frames stay in its outbound queue until
+     * drain is called, instead of being written to a socket
+     *
+     * @return the participant's Handler
+     */
+    Object joinQueued(String roomName, String displayName);
+
+    Object getParticipantSnapshot(Object room);
+
+    /**
+     * Broadcast a frame from a participant to the rest of its room
+     */
+    void broadcast(Object sender, Object frame);
+
+    /**
+     * Empty the outbound queues of a room's participants
+     *
+     * @return the number of frames removed
+     */
+    int drain(Object room);
+
+    /**
+     * Connect a client over the loopback interface and add it to a room. The
+     * frames the server sends it are read and discarded by a background thread.
+     *
+     * @return the connection
+     */
+    Object connect(String roomName, String displayName) throws IOException;
+
+    /**
+     * Pass a frame to the server's JOINED state of a connected client, as if the
+     * client had sent it, and send the replies
+     */
+    void handle(Object connection, Object frame);
+
+    void disconnect(Object connection) throws IOException;
+
+    /**
+     * Copy messages into history entries numbered from 0
+     *
+     * @return a MessageHistory.Entry[]
+     */
+    Object createEntries(String[] texts);
+
+    /**
+     * @return a SearchIndex.Query for the text
+     */
+    Object createMatcher(String text);
+
+    /**
+     * Scan history entries like a room without a search index
+     *
+     * @return the number of matching messages
+     */
+    int scan(Object entries, Object matcher, int limit, boolean parallel);
+
+}
@@ -0,0 +1,65 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of encoding and parsing a TEXT frame in both frame layouts. Run
+ * with -prof gc for the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    // Characters of main data
+    @Param({ "16", "256", "4096" })
+    public int length;
+
+    // Protocol version, 1 for the fixed header and 2 for the compact one
+    @Param({ "1", "2" })
+    public int version;
+
+    private ChatServerAccess server;
+
+    private Object frame;
+
+    private byte[] encodedFrame;
+
+    @Setup
+    public void setUp() {
+        this.server = ChatServerAccess.get();
+        this.frame = this.server.createFrame(this.version, "TEXT", Messages.ofLength(this.length), "seq=123456");
+        this.encodedFrame = this.server.encode(this.frame);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return this.server.encode(this.frame);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return this.server.parse(this.encodedFrame);
+    }
+
+    @Benchmark
+    public String parseAndDecode() {
+        return this.server.getMainData(this.server.parse(this.encodedFrame));
+    }
+
+}
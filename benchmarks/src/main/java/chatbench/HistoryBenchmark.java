@@ -0,0 +1,96 @@
+package chatbench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RECOVERY and SEARCH requests handled by the server's JOINED state, including
+ * writing the reply frames to a loopback connection. The room keeps the whole
+ * history in memory, the largest size needs several gigabytes of heap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g", "-Dchat.history.maxMessages=10000000",
+        "-Dchat.history.maxBytes=4294967296" })
+public class HistoryBenchmark {
+
+    @Param({ "1000", "100000", "10000000" })
+    public int messages;
+
+    private ChatServerAccess server;
+
+    private Object connection;
+
+    private Object recoverOldest;
+
+    private Object recoverNewest;
+
+    private Object searchRare;
+
+    private Object searchCommon;
+
+    private Object searchPrefix;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.server = ChatServerAccess.get();
+        Object room = this.server.createRoom("benchmark");
+        for (int i = 0; i < this.messages; i++) {
+            this.server.addMessage(room, Messages.text(i));
+        }
+        this.connection = this.server.connect("benchmark", "reader");
+
+        this.recoverOldest = this.server.createFrame("RECOVERY", "", "from=0;limit=100");
+        this.recoverNewest = this.server.createFrame("RECOVERY", "", "from=" + (this.messages - 100) + ";limit=100");
+        this.searchRare = this.server.createFrame("SEARCH", Messages.RARE_WORD, "limit=50");
+        this.searchCommon = this.server.createFrame("SEARCH", "hello world", "limit=50");
+        this.searchPrefix = this.server.createFrame("SEARCH", "re*", "limit=50");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.server.disconnect(this.connection);
+    }
+
+    @Benchmark
+    public void recoverOldest() {
+        this.server.handle(this.connection, this.recoverOldest);
+    }
+
+    @Benchmark
+    public void recoverNewest() {
+        this.server.handle(this.connection, this.recoverNewest);
+    }
+
+    @Benchmark
+    public void searchRare() {
+        this.server.handle(this.connection, this.searchRare);
+    }
+
+    @Benchmark
+    public void searchCommon() {
+        this.server.handle(this.connection, this.searchCommon);
+    }
+
+    @Benchmark
+    public void searchPrefix() {
+        this.server.handle(this.connection, this.searchPrefix);
+    }
+
+}
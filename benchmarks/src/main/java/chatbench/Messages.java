@@ -0,0 +1,58 @@
+package chatbench;
+
+import java.util.Random;
+
+/**
+ * Generates chat messages for the benchmarks
+ */
+public class Messages {
+
+    // Words of the generated messages, the first ones are the most frequent
+    private static final String[] WORDS = { "the", "a", "to", "and", "is", "hello", "world", "chat", "room",
+            "message", "server", "client", "frame", "protocol", "lunch", "meeting", "tomorrow", "deploy", "review",
+            "coffee", "weekend", "build", "release", "ticket", "latency", "queue", "socket", "thread", "index",
+            "search" };
+
+    // A word that is in one message of every RARE_INTERVAL
+    public static final String RARE_WORD = "deadline";
+
+    public static final int RARE_INTERVAL = 1000;
+
+    /**
+     * The text of the i-th generated message. The same i always gives the same
+     * text.
+     *
+     * @param i
+     * @return
+     */
+    public static String text(int i) {
+        Random random = new Random(i);
+        StringBuilder text = new StringBuilder("user").append(random.nextInt(100)).append(':');
+        int words = 5 + random.nextInt(15);
+        for (int j = 0; j < words; j++) {
+            // Skew the choice towards the first words
+            int word = (int) (WORDS.length * Math.pow(random.nextDouble(), 2));
+            text.append(' ').append(WORDS[word]);
+        }
+        if (i % RARE_INTERVAL == 0) {
+            text.append(' ').append(RARE_WORD);
+        }
+        return text.toString();
+    }
+
+    /**
+     * A message of about the given number of characters
+     *
+     * @param length
+     * @return
+     */
+    public static String ofLength(int length) {
+        StringBuilder text = new StringBuilder(length + 16);
+        for (int i = 0; text.length() < length; i++) {
+            text.append(Messages.text(i)).append(' ');
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+
+}
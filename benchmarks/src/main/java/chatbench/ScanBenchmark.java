@@ -0,0 +1,59 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The SEARCH scan of a room without an index, sequential against parallel. A
+ * word of the query is in no message, so every message is scanned. The
+ * smallest history where the parallel scan wins is a good value for
+ * chat.search.parallelThreshold on the machine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({ "1000", "2000", "5000", "10000", "100000" })
+    public int messages;
+
+    @Param({ "false", "true" })
+    public boolean parallel;
+
+    private ChatServerAccess server;
+
+    private Object entries;
+
+    private Object matcher;
+
+    @Setup
+    public void setUp() {
+        this.server = ChatServerAccess.get();
+        String[] texts = new String[this.messages];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = Messages.text(i);
+        }
+        this.entries = this.server.createEntries(texts);
+        this.matcher = this.server.createMatcher("the text that nobody ever typed");
+    }
+
+    @Benchmark
+    public int scan() {
+        return this.server.scan(this.entries, this.matcher, 50, this.parallel);
+    }
+
+}